@@ -0,0 +1,128 @@
+package net.neoforged.binarypatcher;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic base and modified jars for the benchmarks.
+ * <p>
+ * Every class has a number of methods that each return a string constant and call the previous method. The modified
+ * version of a class changes a few of its constants and adds a method, which is roughly what a typical patch does.
+ * The same seed always produces the same classes.
+ */
+final class BenchmarkData {
+    static final EnumSet<PatchBase> CLIENT = EnumSet.of(PatchBase.CLIENT);
+
+    private final Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+    private final Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+
+    BenchmarkData(int classCount, int methodsPerClass) {
+        Random random = new Random(classCount * 31L + methodsPerClass);
+        for (int i = 0; i < classCount; i++) {
+            String className = "net/neoforged/bench/Generated" + i;
+            long seed = random.nextLong();
+            baseEntries.put(className + ".class", generateClass(className, methodsPerClass, seed, false));
+            modifiedEntries.put(className + ".class", generateClass(className, methodsPerClass, seed, true));
+        }
+    }
+
+    Map<String, byte[]> getBaseEntries() {
+        return baseEntries;
+    }
+
+    Map<String, byte[]> getModifiedEntries() {
+        return modifiedEntries;
+    }
+
+    /**
+     * Creates MODIFY entries for all classes.
+     */
+    Patch[] createPatches(DiffOptions diffOptions) {
+        Patch[] patches = new Patch[baseEntries.size()];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : baseEntries.entrySet()) {
+            try {
+                patches[i++] = Patch.createModified(entry.getKey(), entry.getValue(), modifiedEntries.get(entry.getKey()),
+                        CLIENT, diffOptions);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return patches;
+    }
+
+    static void writeBundle(OutputStream output, Patch[] patches, PatchBundleFormat format) throws IOException {
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(format);
+        try (PatchBundleWriter writer = format == PatchBundleFormat.V1
+                ? new PatchBundleWriter(output, CLIENT, patches.length)
+                : new PatchBundleWriter(output, CLIENT, options)) {
+            for (Patch patch : patches) {
+                writer.write(patch);
+            }
+        }
+    }
+
+    static void writeJar(File file, Map<String, byte[]> entries) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static byte[] generateClass(String className, int methodCount, long seed, boolean modified) {
+        Random random = new Random(seed);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+        int totalMethods = modified ? methodCount + 1 : methodCount;
+        for (int i = 0; i < totalMethods; i++) {
+            String constant = "constant-" + Long.toHexString(random.nextLong());
+            if (modified && i % 8 == 0) {
+                constant += "-modified";
+            }
+
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "method" + i, "()Ljava/lang/String;", null, null);
+            mv.visitCode();
+            if (i > 0) {
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, "method" + (i - 1), "()Ljava/lang/String;", false);
+                mv.visitInsn(Opcodes.POP);
+            }
+            mv.visitLdcInsn(constant);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
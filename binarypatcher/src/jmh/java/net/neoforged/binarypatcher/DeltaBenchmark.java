@@ -0,0 +1,76 @@
+package net.neoforged.binarypatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing and applying the delta of a single class. Every invocation processes all generated classes,
+ * so the reported time is per class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeltaBenchmark {
+    private static final int CLASS_COUNT = 200;
+
+    @Param({"10", "100"})
+    public int methodsPerClass;
+
+    @Param({"false", "true"})
+    public boolean structuralClassDiff;
+
+    private DiffOptions diffOptions;
+    private String[] paths;
+    private byte[][] baseClasses;
+    private byte[][] modifiedClasses;
+    private byte[][] patchData;
+
+    @Setup
+    public void setup() {
+        diffOptions = new DiffOptions();
+        diffOptions.setStructuralClassDiff(structuralClassDiff);
+
+        BenchmarkData data = new BenchmarkData(CLASS_COUNT, methodsPerClass);
+        paths = data.getBaseEntries().keySet().toArray(new String[0]);
+        baseClasses = data.getBaseEntries().values().toArray(new byte[0][]);
+        modifiedClasses = data.getModifiedEntries().values().toArray(new byte[0][]);
+        Patch[] patches = data.createPatches(diffOptions);
+        patchData = new byte[patches.length][];
+        for (int i = 0; i < patches.length; i++) {
+            patchData[i] = patches[i].getData();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void diff(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            blackhole.consume(Patch.createModified(paths[i], baseClasses[i], modifiedClasses[i], BenchmarkData.CLIENT, diffOptions));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void apply(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            blackhole.consume(Patch.applyDelta(baseClasses[i], patchData[i]));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package net.neoforged.binarypatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of writing and reading patch bundles, independent of computing or applying deltas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatchBundleBenchmark {
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    @Param({"V1", "V2"})
+    public PatchBundleFormat format;
+
+    private Patch[] patches;
+    private byte[] bundle;
+
+    @Setup
+    public void setup() throws IOException {
+        // Deltas are computed once, so only the container format is measured
+        patches = new BenchmarkData(entryCount, 20).createPatches(new DiffOptions());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BenchmarkData.writeBundle(output, patches, format);
+        bundle = output.toByteArray();
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(bundle.length);
+        BenchmarkData.writeBundle(output, patches, format);
+        return output.size();
+    }
+
+    @Benchmark
+    public void readCursor(Blackhole blackhole) throws IOException {
+        try (PatchBundleReader reader = new PatchBundleReader(new ByteArrayInputStream(bundle))) {
+            PatchCursor cursor = new PatchCursor();
+            while (reader.next(cursor)) {
+                blackhole.consume(cursor.getData());
+            }
+        }
+    }
+
+    @Benchmark
+    public void readPatches(Blackhole blackhole) throws IOException {
+        try (PatchBundleReader reader = new PatchBundleReader(new ByteArrayInputStream(bundle))) {
+            for (Patch patch : reader) {
+                blackhole.consume(patch);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.neoforged.binarypatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating a bundle from two jars and applying it end-to-end, including all file IO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PatcherBenchmark {
+    @Param({"2000"})
+    public int classCount;
+
+    @Param({"V1", "V2"})
+    public PatchBundleFormat format;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path tempDir;
+    private File baseFile;
+    private File modifiedFile;
+    private File patchBundleFile;
+    private File outputFile;
+    private DiffOptions diffOptions;
+    private PatchOptions patchOptions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("binarypatcher-bench");
+        baseFile = tempDir.resolve("base.jar").toFile();
+        modifiedFile = tempDir.resolve("modified.jar").toFile();
+        patchBundleFile = tempDir.resolve("patches.bundle").toFile();
+        outputFile = tempDir.resolve("output.jar").toFile();
+
+        BenchmarkData data = new BenchmarkData(classCount, 20);
+        BenchmarkData.writeJar(baseFile, data.getBaseEntries());
+        BenchmarkData.writeJar(modifiedFile, data.getModifiedEntries());
+
+        PatchBundleOptions bundleOptions = new PatchBundleOptions();
+        bundleOptions.setFormat(format);
+        diffOptions = new DiffOptions();
+        diffOptions.setBundleOptions(bundleOptions);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+
+        patchOptions = new PatchOptions();
+        patchOptions.setParallelism(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public long generate() throws IOException {
+        File generatedFile = tempDir.resolve("generated.bundle").toFile();
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), generatedFile, diffOptions);
+        return generatedFile.length();
+    }
+
+    @Benchmark
+    public long patch() {
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, message -> {
+        });
+        return outputFile.length();
+    }
+}
@@ -0,0 +1,358 @@
+package net.neoforged.binarypatcher;
+
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
+import org.jspecify.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Structural delta format for .class files.
+ * <p>
+ * Instead of diffing the class file as one opaque byte array, the class file is split into its constant pool,
+ * the class header (access flags, this/super class and interfaces), the fields, the methods and the class attributes.
+ * Fields and methods of the modified class are matched against the base class by name and descriptor.
+ * Members that are byte-for-byte identical are referenced by their index in the base class, and only changed members
+ * are stored as an xdelta patch against their counterpart in the base class.
+ * <p>
+ * See the README for a description of the format.
+ */
+final class ClassFileDelta {
+    private static final int MAGIC = 0x4E464344; // "NFCD"
+    private static final int VERSION = 1;
+
+    private static final int OP_COPY = 0;
+    private static final int OP_DELTA = 1;
+    private static final int OP_LITERAL = 2;
+
+    private ClassFileDelta() {
+    }
+
+    /**
+     * Returns true if the given patch data is in the structural class file delta format rather than xdelta.
+     */
+    static boolean isClassFileDelta(byte[] patchData) {
+        return patchData.length >= 5 && readInt(patchData, 0) == MAGIC;
+    }
+
+    /**
+     * Computes a structural delta between two class files.
+     *
+     * @return The delta, or null if either input could not be parsed as a class file, in which case the caller
+     * should fall back to a plain xdelta patch.
+     */
+    static byte @Nullable [] compute(byte[] base, byte[] modified) throws IOException {
+        Layout baseLayout;
+        Layout modifiedLayout;
+        try {
+            baseLayout = new Layout(base);
+            modifiedLayout = new Layout(modified);
+        } catch (RuntimeException e) {
+            return null; // Not a class file we understand
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(modified.length / 4);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        // Magic, version and constant pool
+        writeData(out, new Delta().compute(baseLayout.constantPool(), modifiedLayout.constantPool()));
+        // Access flags, this class, super class and interfaces
+        writeData(out, modifiedLayout.header());
+
+        writeMembers(out, baseLayout.fields, modifiedLayout.fields);
+        writeMembers(out, baseLayout.methods, modifiedLayout.methods);
+        writeSection(out, baseLayout.attributes(), modifiedLayout.attributes());
+
+        byte[] result = buffer.toByteArray();
+
+        // Ensure the delta reproduces the modified class exactly before handing it out
+        if (!Arrays.equals(apply(base, result), modified)) {
+            return null;
+        }
+        return result;
+    }
+
+    static byte[] apply(byte[] base, byte[] patchData) throws IOException {
+        Layout baseLayout;
+        try {
+            baseLayout = new Layout(base);
+        } catch (RuntimeException e) {
+            throw new IOException("Base of a class file delta is not a valid class file", e);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(patchData));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file delta");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported class file delta version: " + version);
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(base.length + patchData.length);
+        result.write(new GDiffPatcher().patch(baseLayout.constantPool(), readData(in)));
+        result.write(readData(in));
+        applyMembers(in, baseLayout.fields, result);
+        applyMembers(in, baseLayout.methods, result);
+        result.write(applyOp(in, baseLayout.attributes(), in.readUnsignedByte()));
+        if (in.available() != 0) {
+            throw new IOException("Trailing data after class file delta");
+        }
+        return result.toByteArray();
+    }
+
+    private static void writeMembers(DataOutputStream out, Layout.Members baseMembers, Layout.Members modifiedMembers) throws IOException {
+        Map<String, Integer> baseIndex = new HashMap<>(baseMembers.count());
+        for (int i = 0; i < baseMembers.count(); i++) {
+            baseIndex.putIfAbsent(baseMembers.key(i), i);
+        }
+
+        out.writeShort(modifiedMembers.count());
+        for (int i = 0; i < modifiedMembers.count(); i++) {
+            byte[] member = modifiedMembers.get(i);
+            Integer baseMemberIndex = baseIndex.get(modifiedMembers.key(i));
+            if (baseMemberIndex == null) {
+                out.writeByte(OP_LITERAL);
+                writeData(out, member);
+                continue;
+            }
+
+            byte[] baseMember = baseMembers.get(baseMemberIndex);
+            if (Arrays.equals(baseMember, member)) {
+                out.writeByte(OP_COPY);
+                out.writeShort(baseMemberIndex);
+                continue;
+            }
+
+            byte[] delta = new Delta().compute(baseMember, member);
+            if (delta.length < member.length) {
+                out.writeByte(OP_DELTA);
+                out.writeShort(baseMemberIndex);
+                writeData(out, delta);
+            } else {
+                out.writeByte(OP_LITERAL);
+                writeData(out, member);
+            }
+        }
+    }
+
+    private static void writeSection(DataOutputStream out, byte[] baseSection, byte[] modifiedSection) throws IOException {
+        if (Arrays.equals(baseSection, modifiedSection)) {
+            out.writeByte(OP_COPY);
+            return;
+        }
+        byte[] delta = new Delta().compute(baseSection, modifiedSection);
+        if (delta.length < modifiedSection.length) {
+            out.writeByte(OP_DELTA);
+            writeData(out, delta);
+        } else {
+            out.writeByte(OP_LITERAL);
+            writeData(out, modifiedSection);
+        }
+    }
+
+    private static void applyMembers(DataInputStream in, Layout.Members baseMembers, ByteArrayOutputStream result) throws IOException {
+        int count = in.readUnsignedShort();
+        result.write(count >>> 8);
+        result.write(count);
+        for (int i = 0; i < count; i++) {
+            int op = in.readUnsignedByte();
+            if (op == OP_LITERAL) {
+                result.write(readData(in));
+            } else {
+                int baseMemberIndex = in.readUnsignedShort();
+                if (baseMemberIndex >= baseMembers.count()) {
+                    throw new IOException("Class file delta references member " + baseMemberIndex
+                            + " but the base only has " + baseMembers.count());
+                }
+                result.write(applyOp(in, baseMembers.get(baseMemberIndex), op));
+            }
+        }
+    }
+
+    private static byte[] applyOp(DataInputStream in, byte[] base, int op) throws IOException {
+        switch (op) {
+            case OP_COPY:
+                return base;
+            case OP_DELTA:
+                return new GDiffPatcher().patch(base, readData(in));
+            case OP_LITERAL:
+                return readData(in);
+            default:
+                throw new IOException("Unknown class file delta operation: " + op);
+        }
+    }
+
+    private static void writeData(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readData(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid data length in class file delta: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Offsets of the structural parts of a class file.
+     * Throws a runtime exception if the data is truncated or otherwise malformed.
+     */
+    private static final class Layout {
+        private final byte[] data;
+        private final int[] constantPoolOffsets;
+        private final int constantPoolEnd;
+        private final int fieldsStart;
+        private final Members fields;
+        private final Members methods;
+        private final int attributesStart;
+
+        Layout(byte[] data) {
+            this.data = data;
+            if (readInt(data, 0) != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Missing class file magic");
+            }
+
+            int constantPoolCount = readUnsignedShort(data, 8);
+            constantPoolOffsets = new int[constantPoolCount];
+            int offset = 10;
+            for (int i = 1; i < constantPoolCount; i++) {
+                constantPoolOffsets[i] = offset;
+                int tag = data[offset] & 0xFF;
+                switch (tag) {
+                    case 1: // Utf8
+                        offset += 3 + readUnsignedShort(data, offset + 1);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++; // Takes up two slots
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at " + offset);
+                }
+            }
+            constantPoolEnd = offset;
+
+            // access_flags, this_class, super_class, interfaces_count
+            int interfacesCount = readUnsignedShort(data, offset + 6);
+            fieldsStart = offset + 8 + 2 * interfacesCount;
+            fields = new Members(fieldsStart);
+            methods = new Members(fields.end);
+            attributesStart = methods.end;
+            int attributesEnd = skipAttributes(attributesStart);
+            if (attributesEnd != data.length) {
+                throw new IllegalArgumentException("Unexpected trailing data in class file");
+            }
+        }
+
+        byte[] constantPool() {
+            return Arrays.copyOfRange(data, 0, constantPoolEnd);
+        }
+
+        byte[] header() {
+            return Arrays.copyOfRange(data, constantPoolEnd, fieldsStart);
+        }
+
+        byte[] attributes() {
+            return Arrays.copyOfRange(data, attributesStart, data.length);
+        }
+
+        private int skipAttributes(int offset) {
+            int count = readUnsignedShort(data, offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                offset += 6 + readInt(data, offset + 2);
+                if (offset > data.length || offset < 0) {
+                    throw new IllegalArgumentException("Attribute exceeds class file bounds");
+                }
+            }
+            return offset;
+        }
+
+        private String utf8(int constantPoolIndex) {
+            int offset = constantPoolOffsets[constantPoolIndex];
+            if (data[offset] != 1) {
+                throw new IllegalArgumentException("Constant pool entry " + constantPoolIndex + " is not a Utf8 entry");
+            }
+            return new String(data, offset + 3, readUnsignedShort(data, offset + 1), StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * A table of fields or methods, which share the same layout.
+         */
+        private final class Members {
+            private final int[] offsets;
+            private final int end;
+
+            Members(int start) {
+                int count = readUnsignedShort(data, start);
+                offsets = new int[count + 1];
+                int offset = start + 2;
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = offset;
+                    // access_flags, name_index, descriptor_index
+                    offset = skipAttributes(offset + 6);
+                }
+                offsets[count] = offset;
+                end = offset;
+            }
+
+            int count() {
+                return offsets.length - 1;
+            }
+
+            byte[] get(int index) {
+                return Arrays.copyOfRange(data, offsets[index], offsets[index + 1]);
+            }
+
+            String key(int index) {
+                int offset = offsets[index];
+                return utf8(readUnsignedShort(data, offset + 2)) + ' ' + utf8(readUnsignedShort(data, offset + 4));
+            }
+        }
+    }
+}
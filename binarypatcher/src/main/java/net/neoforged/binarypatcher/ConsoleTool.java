@@ -9,6 +9,7 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import joptsimple.OptionSpecBuilder;
+import org.jspecify.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -17,8 +18,10 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 public class ConsoleTool {
@@ -30,8 +33,11 @@ public class ConsoleTool {
         OptionSpecBuilder diffO = parser.accepts("diff");
         OptionSpecBuilder patchO = parser.accepts("patch");
         OptionSpecBuilder listO = parser.accepts("list");
+        OptionSpecBuilder composeO = parser.accepts("compose");
+        OptionSpecBuilder verifyO = parser.accepts("verify");
+        OptionSpecBuilder analyzeO = parser.accepts("analyze");
 
-        parser.mutuallyExclusive(diffO, patchO, listO);
+        parser.mutuallyExclusive(diffO, patchO, listO, composeO, verifyO, analyzeO);
 
         // Diff arguments
         OptionSpec<File> clientBaseO = parser.accepts("base-client").availableIf(diffO).withRequiredArg().ofType(File.class);
@@ -41,16 +47,32 @@ public class ConsoleTool {
         OptionSpec<File> serverModifiedO = parser.accepts("modified-server").availableIf(diffO, serverBaseO).requiredIf(serverBaseO).withRequiredArg().ofType(File.class);
         OptionSpec<File> joinedModifiedO = parser.accepts("modified-joined").availableIf(diffO, joinedBaseO).requiredIf(joinedBaseO).withRequiredArg().ofType(File.class);
         OptionSpec<Void> optimizeConstantPoolO = parser.accepts("optimize-constantpool").availableIf(diffO);
+        OptionSpec<File> constantPoolCacheO = parser.accepts("constantpool-cache").availableIf(optimizeConstantPoolO).withRequiredArg().ofType(File.class);
+        OptionSpec<Void> structuralClassDiffO = parser.accepts("structural-class-diff").availableIf(diffO);
+        OptionSpec<Void> targetDigestsO = parser.accepts("target-digests").availableIf(diffO);
+        OptionSpec<Double> replaceThresholdO = parser.accepts("replace-threshold").availableIf(diffO).withRequiredArg().ofType(Double.class);
+        OptionSpec<PatchBundleFormat> bundleFormatO = parser.accepts("bundle-format").availableIf(diffO, composeO).withRequiredArg().ofType(PatchBundleFormat.class).defaultsTo(PatchBundleFormat.V1);
+        OptionSpec<Integer> bundleBlockSizeO = parser.accepts("bundle-block-size").availableIf(diffO, composeO).withRequiredArg().ofType(Integer.class);
+        OptionSpec<Integer> bundleDictionarySizeO = parser.accepts("bundle-dictionary-size").availableIf(diffO, composeO).withRequiredArg().ofType(Integer.class);
+        OptionSpec<File> digestsO = parser.accepts("digests", "Record the CRC32 and size of all inputs in this file, to find unchanged paths in the next run. "
+                + "A changed entry with the same CRC32 and size is not detected").availableIf(diffO).withRequiredArg().ofType(File.class);
+        OptionSpec<File> previousPatchesO = parser.accepts("previous-patches", "Reuse the patches of unchanged paths from this bundle, "
+                + "if it is the bundle recorded in the digests file").availableIf(digestsO).withRequiredArg().ofType(File.class);
         OptionSpec<String> includeO = parser.accepts("include").availableIf(diffO).withRequiredArg().ofType(String.class);
         OptionSpec<String> excludeO = parser.accepts("exclude").availableIf(diffO).withRequiredArg().ofType(String.class);
 
         // Apply arguments
-        OptionSpec<File> patchesO = parser.accepts("patches").requiredIf(patchO, listO).withRequiredArg().ofType(File.class);
-        OptionSpec<File> baseFileO = parser.accepts("base").requiredIf(patchO).withRequiredArg().ofType(File.class);
-        OptionSpec<PatchBase> baseTypeO = parser.accepts("base-type").requiredIf(patchO).withRequiredArg().ofType(PatchBase.class);
+        OptionSpec<File> patchesO = parser.accepts("patches").requiredIf(patchO, listO, composeO, verifyO, analyzeO).withRequiredArg().ofType(File.class);
+        OptionSpec<File> baseFileO = parser.accepts("base").requiredIf(patchO, verifyO).withRequiredArg().ofType(File.class);
+        OptionSpec<PatchBase> baseTypeO = parser.accepts("base-type").requiredIf(patchO, verifyO, baseFileO).withRequiredArg().ofType(PatchBase.class);
+        OptionSpec<Integer> parallelismO = parser.accepts("parallelism").availableIf(patchO, verifyO).withRequiredArg().ofType(Integer.class);
+        OptionSpec<Void> inPlaceO = parser.accepts("in-place").availableIf(patchO);
+        OptionSpec<Void> trustOutputO = parser.accepts("trust-output").availableIf(inPlaceO);
+        OptionSpec<Long> memoryBudgetO = parser.accepts("memory-budget").availableIf(patchO).withRequiredArg().ofType(Long.class);
+        OptionSpec<File> spillDirO = parser.accepts("spill-dir").availableIf(patchO).withRequiredArg().ofType(File.class);
 
         // Shared arguments
-        OptionSpec<File> outputO = parser.accepts("output").availableIf(diffO, patchO).requiredIf(diffO, patchO).withRequiredArg().ofType(File.class);
+        OptionSpec<File> outputO = parser.accepts("output").availableIf(diffO, patchO, composeO).requiredIf(diffO, patchO, composeO).withRequiredArg().ofType(File.class);
 
         OptionSpec<Void> helpO = parser.acceptsAll(Arrays.asList("?", "help")).forHelp();
 
@@ -67,16 +89,59 @@ public class ConsoleTool {
                 return;
             }
 
+            if (options.has(analyzeO)) {
+                analyzePatchBundle(options.valueOf(patchesO), options.valueOf(baseFileO), options.valueOf(baseTypeO));
+                return;
+            }
+
+            if (options.has(verifyO)) {
+                File baseFile = options.valueOf(baseFileO);
+                PatchBase baseType = options.valueOf(baseTypeO);
+                List<File> patches = options.valuesOf(patchesO);
+                int parallelism = options.has(parallelismO) ? options.valueOf(parallelismO) : Runtime.getRuntime().availableProcessors();
+
+                log("Verifying: ");
+                log("  Base:      " + baseFile);
+                log("  Base Type: " + baseType);
+                log("  Patches:   " + patches);
+
+                long start = System.currentTimeMillis();
+                List<PatchVerifier.Mismatch> mismatches = PatchVerifier.verify(baseFile, baseType, patches, parallelism);
+                debug("Completed in " + (System.currentTimeMillis() - start) + "ms");
+                if (!mismatches.isEmpty()) {
+                    for (PatchVerifier.Mismatch mismatch : mismatches) {
+                        log("  " + mismatch);
+                    }
+                    err("Base file " + baseFile + " does not match the patches: " + mismatches.size() + " mismatches");
+                }
+                log("Base file matches the patches");
+                return;
+            }
+
             File output = options.valueOf(outputO).getAbsoluteFile();
 
-            if (output.exists() && !output.delete())
+            // In-place patching reuses the existing output
+            if (!options.has(inPlaceO) && output.exists() && !output.delete())
                 err("Could not delete output file: " + output);
 
             if (!output.getParentFile().exists() && !output.getParentFile().mkdirs())
                 err("Could not make output folders: " + output.getParentFile());
 
+            PatchBundleOptions bundleOptions = new PatchBundleOptions();
+            bundleOptions.setFormat(options.valueOf(bundleFormatO));
+            if (options.has(bundleBlockSizeO)) {
+                bundleOptions.setBlockSize(options.valueOf(bundleBlockSizeO));
+            }
+            if (options.has(bundleDictionarySizeO)) {
+                bundleOptions.setDictionarySize(options.valueOf(bundleDictionarySizeO));
+            }
+            if (bundleOptions.getFormat() == PatchBundleFormat.V2) {
+                bundleOptions.setCompressionExecutor(ForkJoinPool.commonPool());
+            }
+
             if (options.has(diffO)) {
                 boolean optimizeConstantPool = options.has(optimizeConstantPoolO);
+                boolean structuralClassDiff = options.has(structuralClassDiffO);
                 Predicate<String> pathFilter = createPathFilter(options.valuesOf(includeO), options.valuesOf(excludeO));
 
                 Map<PatchBase, File> baseFiles = new EnumMap<>(PatchBase.class);
@@ -106,10 +171,36 @@ public class ConsoleTool {
                 log("  Output:  " + output);
                 log("Diff Options: ");
                 log("  Optimize Constant Table: " + optimizeConstantPool);
+                if (options.has(constantPoolCacheO)) {
+                    log("  Constant Table Cache: " + options.valueOf(constantPoolCacheO));
+                }
+                log("  Structural Class Diff: " + structuralClassDiff);
+                log("  Target Digests: " + options.has(targetDigestsO));
+                if (options.has(replaceThresholdO)) {
+                    log("  Replace Threshold: " + options.valueOf(replaceThresholdO));
+                }
+                log("  Bundle Format: " + bundleOptions.getFormat());
+                if (bundleOptions.getFormat() == PatchBundleFormat.V2) {
+                    log("  Bundle Block Size: " + bundleOptions.getBlockSize());
+                    log("  Bundle Dictionary Size: " + bundleOptions.getDictionarySize());
+                }
+                if (options.has(digestsO)) {
+                    log("  Digests: " + options.valueOf(digestsO));
+                    log("  Previous Patches: " + options.valueOf(previousPatchesO));
+                }
 
                 DiffOptions diffOptions = new DiffOptions();
                 diffOptions.setOptimizeConstantPool(optimizeConstantPool);
+                diffOptions.setConstantPoolCacheDirectory(options.valueOf(constantPoolCacheO));
+                diffOptions.setStructuralClassDiff(structuralClassDiff);
+                diffOptions.setStoreTargetDigests(options.has(targetDigestsO));
+                if (options.has(replaceThresholdO)) {
+                    diffOptions.setReplaceThreshold(options.valueOf(replaceThresholdO));
+                }
                 diffOptions.setPathFilter(pathFilter);
+                diffOptions.setBundleOptions(bundleOptions);
+                diffOptions.setDigestFile(options.valueOf(digestsO));
+                diffOptions.setPreviousPatchBundle(options.valueOf(previousPatchesO));
                 Generator.createPatchBundle(
                         baseFiles,
                         modifiedFiles,
@@ -129,12 +220,42 @@ public class ConsoleTool {
                 log("  Output:    " + output);
                 log("  Patches:   " + patches);
 
+                PatchOptions patchOptions = new PatchOptions();
+                if (options.has(parallelismO)) {
+                    patchOptions.setParallelism(options.valueOf(parallelismO));
+                }
+                patchOptions.setInPlace(options.has(inPlaceO));
+                patchOptions.setTrustOutput(options.has(trustOutputO));
+                if (options.has(memoryBudgetO)) {
+                    patchOptions.setMemoryBudget(options.valueOf(memoryBudgetO));
+                }
+                if (options.has(spillDirO)) {
+                    patchOptions.setSpillDirectory(options.valueOf(spillDirO));
+                }
+                log("  Parallelism: " + patchOptions.getParallelism());
+                log("  In-Place:  " + patchOptions.isInPlace());
+                if (patchOptions.isTrustOutput()) {
+                    log("  Trust Output: true");
+                }
+                if (options.has(memoryBudgetO)) {
+                    log("  Memory Budget: " + patchOptions.getMemoryBudget());
+                }
+
                 long startLoadingPatches = System.currentTimeMillis();
                 debug("Loaded patches in " + (System.currentTimeMillis() - startLoadingPatches) + "ms");
 
-                Patcher.patch(baseFile, baseType, patches, output, ConsoleTool::debug);
+                Patcher.patch(baseFile, baseType, patches, output, patchOptions, ConsoleTool::debug);
 
                 debug("Completed in " + (System.currentTimeMillis() - start) + "ms");
+            } else if (options.has(composeO)) {
+                List<File> patches = options.valuesOf(patchesO);
+
+                log("Composing: ");
+                log("  Patches: " + patches);
+                log("  Output:  " + output);
+                log("  Bundle Format: " + bundleOptions.getFormat());
+
+                PatchBundleComposer.compose(patches, output, bundleOptions);
             } else {
                 parser.printHelpOn(System.out);
             }
@@ -171,20 +292,24 @@ public class ConsoleTool {
 
             List<Object[]> patchSizes = new ArrayList<>(reader.getEntryCount());
 
-            for (Patch patch : reader) {
+            // Only the metadata is listed, so the data is skipped instead of being read
+            PatchCursor patch = new PatchCursor();
+            while (reader.nextMetadata(patch)) {
+                String targetPath = patch.getPath().toString();
+                int dataLength = patch.getDataLength();
                 String[] col = new String[colCount];
-                col[0] = patch.getTargetPath();
+                col[0] = targetPath;
                 col[1] = patch.getOperation().name();
-                col[2] = patch.getOperation() == PatchOperation.MODIFY ? Long.toHexString(patch.getBaseChecksumUnsigned()) : "";
-                col[3] = patch.getOperation() != PatchOperation.REMOVE ? String.valueOf(patch.getData().length) : "";
+                col[2] = patch.getOperation().hasBaseChecksum() ? Long.toHexString(patch.getBaseChecksumUnsigned()) : "";
+                col[3] = patch.getOperation() != PatchOperation.REMOVE ? String.valueOf(dataLength) : "";
                 for (int i = 0; i < bases.size(); i++) {
-                    col[4 + i] = patch.getBaseTypes().contains(bases.get(i)) ? "X" : "";
+                    col[4 + i] = patch.appliesTo(bases.get(i)) ? "X" : "";
                 }
                 rows.add(col);
 
                 // Record the patch size so we can print a report on the largest patches
                 if (patch.getOperation() == PatchOperation.MODIFY) {
-                    patchSizes.add(new Object[]{patch.getTargetPath(), patch.getData().length});
+                    patchSizes.add(new Object[]{targetPath, dataLength});
                 }
             }
 
@@ -205,6 +330,70 @@ public class ConsoleTool {
         }
     }
 
+    private static void analyzePatchBundle(File patchBundleFile, @Nullable File baseFile, @Nullable PatchBase baseType) throws IOException {
+        PatchBundleAnalysis analysis = PatchBundleAnalysis.analyze(patchBundleFile, baseFile, baseType);
+
+        List<PatchBundleAnalysis.PackageStats> packages = analysis.getPackages();
+        packages.sort(Comparator.comparingLong(PatchBundleAnalysis.PackageStats::getTotalBytes).reversed());
+        System.out.println("Patch bytes by package:");
+        System.out.println();
+        List<String[]> packageRows = new ArrayList<>(packages.size() + 1);
+        packageRows.add(new String[]{"Package", "Entries", "CREATE Bytes", "MODIFY Bytes", "REPLACE Bytes", "Total Bytes", "Instructions"});
+        for (PatchBundleAnalysis.PackageStats stats : packages) {
+            packageRows.add(new String[]{
+                    stats.packageName.isEmpty() ? "(root)" : stats.packageName,
+                    String.valueOf(stats.entryCount),
+                    String.valueOf(stats.createBytes),
+                    String.valueOf(stats.modifyBytes),
+                    String.valueOf(stats.replaceBytes),
+                    String.valueOf(stats.getTotalBytes()),
+                    String.valueOf(stats.instructions)
+            });
+        }
+        printMarkdownTable(packageRows);
+        System.out.println();
+
+        List<PatchBundleAnalysis.EntryStats> modifications = new ArrayList<>();
+        for (PatchBundleAnalysis.EntryStats stats : analysis.getEntries()) {
+            if (stats.operation == PatchOperation.MODIFY) {
+                modifications.add(stats);
+            }
+        }
+        modifications.sort(Comparator.comparingInt((PatchBundleAnalysis.EntryStats stats) -> stats.patchSize).reversed());
+        System.out.println("MODIFY patches (ratio is relative to the " + (baseFile != null ? "base" : "patched") + " entry):");
+        System.out.println();
+        List<String[]> modifyRows = new ArrayList<>(modifications.size() + 1);
+        modifyRows.add(new String[]{"Target Path", "Size", "Base Size", "Target Size", "Ratio", "COPY", "DATA", "Inserted Bytes"});
+        List<String[]> createCheaperRows = new ArrayList<>();
+        createCheaperRows.add(new String[]{"Target Path", "Patch Size", "Target Size"});
+        for (PatchBundleAnalysis.EntryStats stats : modifications) {
+            double ratio = stats.getRatio();
+            modifyRows.add(new String[]{
+                    stats.targetPath,
+                    String.valueOf(stats.patchSize),
+                    stats.baseSize >= 0 ? String.valueOf(stats.baseSize) : "",
+                    stats.targetSize >= 0 ? String.valueOf(stats.targetSize) : "",
+                    ratio >= 0 ? String.format(Locale.ROOT, "%.3f", ratio) : "",
+                    stats.structural ? "structural" : String.valueOf(stats.copyInstructions),
+                    stats.structural ? "" : String.valueOf(stats.dataInstructions),
+                    stats.structural ? "" : String.valueOf(stats.insertedBytes)
+            });
+            if (stats.isCreateCheaper()) {
+                createCheaperRows.add(new String[]{stats.targetPath, String.valueOf(stats.patchSize), String.valueOf(stats.targetSize)});
+            }
+        }
+        printMarkdownTable(modifyRows);
+        System.out.println();
+
+        if (createCheaperRows.size() > 1) {
+            System.out.println("MODIFY patches that are not smaller than a CREATE of the patched entry:");
+            System.out.println();
+            printMarkdownTable(createCheaperRows);
+        } else {
+            System.out.println("No MODIFY patch is larger than a CREATE of its patched entry would be.");
+        }
+    }
+
     private static void printMarkdownTable(List<String[]> rows) {
         // Determine col widths
         int[] colWidths = new int[rows.get(0).length];
@@ -0,0 +1,90 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Rewrites modified class files so that their constant pool starts with the constant pool of the base class,
+ * which keeps the delta small when constants were merely reordered.
+ * <p>
+ * Results can be cached on disk, keyed by the digest of both the base and the modified class, so that regenerating
+ * a bundle does not rewrite class pairs that have not changed since. Cache entries are never evicted.
+ */
+final class ConstantPoolOptimizer {
+    /**
+     * Part of every cache key, to be incremented whenever the rewritten class files would change.
+     */
+    private static final int CACHE_VERSION = 1;
+
+    @Nullable
+    private final Path cacheDirectory;
+
+    ConstantPoolOptimizer(@Nullable File cacheDirectory) throws IOException {
+        this.cacheDirectory = cacheDirectory != null ? cacheDirectory.toPath() : null;
+        if (this.cacheDirectory != null) {
+            Files.createDirectories(this.cacheDirectory);
+        }
+    }
+
+    static byte[] optimize(byte[] clean, byte[] dirty) {
+        if (clean.length == 0 || dirty.length == 0) {
+            return dirty;
+        }
+        ClassReader cleanReader = new ClassReader(clean);
+        ClassReader dirtyReader = new ClassReader(dirty);
+        ClassWriter writer = new ClassWriter(cleanReader, 0);
+        dirtyReader.accept(writer, 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Same as {@link #optimize}, but reuses the result of a previous call with the same classes if it is cached.
+     * Safe to call concurrently.
+     */
+    byte[] optimizeCached(byte[] clean, byte[] dirty) throws IOException {
+        if (cacheDirectory == null) {
+            return optimize(clean, dirty);
+        }
+
+        Path cacheFile = cacheDirectory.resolve(getCacheKey(clean, dirty));
+        try {
+            return Files.readAllBytes(cacheFile);
+        } catch (NoSuchFileException ignored) {
+        }
+
+        byte[] optimized = optimize(clean, dirty);
+        // Write to a temporary file first, so that concurrent readers never see a partially written entry
+        Path tempFile = Files.createTempFile(cacheDirectory, "optimized", ".tmp");
+        try {
+            Files.write(tempFile, optimized);
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return optimized;
+    }
+
+    private static String getCacheKey(byte[] clean, byte[] dirty) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(8).putInt(CACHE_VERSION).putInt(clean.length).array());
+            digest.update(clean);
+            digest.update(dirty);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // Standard JCA algorithm is missing
+        }
+    }
+}
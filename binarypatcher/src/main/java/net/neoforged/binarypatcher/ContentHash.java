@@ -0,0 +1,108 @@
+package net.neoforged.binarypatcher;
+
+/**
+ * A 128-bit MurmurHash3 (x64 variant, seed 0) of some content, for grouping identical contents without the cost of
+ * a cryptographic digest. Equal hashes do not guarantee equal contents, so callers have to compare the contents
+ * themselves before treating them as identical.
+ */
+final class ContentHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long h1;
+    private final long h2;
+
+    private ContentHash(long h1, long h2) {
+        this.h1 = h1;
+        this.h2 = h2;
+    }
+
+    static ContentHash of(byte[] data) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = data.length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(data, i * 16);
+            long k2 = getLongLittleEndian(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // The remaining 0 to 15 bytes
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = data.length - tail - 1; i >= 8; i--) {
+            k2 ^= (data[tail + i] & 0xFFL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(data.length - tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (data[tail + i] & 0xFFL) << (i * 8);
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new ContentHash(h1, h2);
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--) {
+            result = result << 8 | (data[offset + i] & 0xFFL);
+        }
+        return result;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        ContentHash other = (ContentHash) o;
+        return h1 == other.h1 && h2 == other.h2;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) h1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", h1, h2);
+    }
+}
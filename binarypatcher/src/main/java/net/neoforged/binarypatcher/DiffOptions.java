@@ -1,5 +1,8 @@
 package net.neoforged.binarypatcher;
 
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
 import java.util.function.Predicate;
 
 public final class DiffOptions {
@@ -9,12 +12,65 @@ public final class DiffOptions {
      */
     private boolean optimizeConstantPool;
 
+    /**
+     * If set, class files optimized by {@link #optimizeConstantPool} are cached in this directory, so that
+     * regenerating a bundle does not optimize unchanged classes again.
+     */
+    @Nullable
+    private File constantPoolCacheDirectory;
+
+    /**
+     * When diffing .class files, diff the constant pool, fields, methods and attributes separately.
+     * Unchanged members are referenced by their index in the base class, so the patch only carries deltas for
+     * the members that actually changed. Falls back to a plain xdelta patch if that is smaller.
+     */
+    private boolean structuralClassDiff;
+
     /**
      * Optional predicate that will be tested against every path from the base and modified jar to determine whether
      * the path participates in diffing.
      */
     private Predicate<String> pathFilter = path -> true;
 
+    /**
+     * Options for writing the resulting patch bundle, such as its format.
+     */
+    private PatchBundleOptions bundleOptions = new PatchBundleOptions();
+
+    /**
+     * Record the CRC32 and size of the patched file in every CREATE and MODIFY entry, so that appliers can verify
+     * their output. Bundles with target digests cannot be read by appliers that predate them.
+     */
+    private boolean storeTargetDigests;
+
+    /**
+     * If positive, a modified file is stored as a REPLACE entry with its full content instead of a MODIFY entry
+     * when its delta is at least this fraction of the size of the modified file. Applying a REPLACE is much cheaper
+     * than applying a delta, so a value below 1 trades a little bundle size for apply time. Disabled by default,
+     * since appliers that predate REPLACE entries cannot read such bundles.
+     */
+    private double replaceThreshold;
+
+    /**
+     * If set, the digests of all inputs are recorded in this file after generating the patch bundle, together with a
+     * hash of the bundle itself.
+     * <p>
+     * The digest of an entry is the CRC32 and size from the zip central directory, so no entry has to be read to
+     * detect unchanged paths. The trade-off is that CRC32 is not collision resistant: a changed entry that keeps its
+     * size and CRC32 is treated as unchanged, and the outdated patch of the {@link #previousPatchBundle} is reused.
+     * Do not use incremental generation for inputs that can be crafted by a third party.
+     */
+    @Nullable
+    private File digestFile;
+
+    /**
+     * A patch bundle that was generated together with the current {@link #digestFile}. Paths whose inputs have not
+     * changed since are copied from it instead of being diffed again. Ignored if either file does not exist, or if
+     * the hash of this bundle does not match the one recorded in the digest file.
+     */
+    @Nullable
+    private File previousPatchBundle;
+
     public boolean isOptimizeConstantPool() {
         return optimizeConstantPool;
     }
@@ -23,6 +79,22 @@ public final class DiffOptions {
         this.optimizeConstantPool = optimizeConstantPool;
     }
 
+    public @Nullable File getConstantPoolCacheDirectory() {
+        return constantPoolCacheDirectory;
+    }
+
+    public void setConstantPoolCacheDirectory(@Nullable File constantPoolCacheDirectory) {
+        this.constantPoolCacheDirectory = constantPoolCacheDirectory;
+    }
+
+    public boolean isStructuralClassDiff() {
+        return structuralClassDiff;
+    }
+
+    public void setStructuralClassDiff(boolean structuralClassDiff) {
+        this.structuralClassDiff = structuralClassDiff;
+    }
+
     public Predicate<String> getPathFilter() {
         return pathFilter;
     }
@@ -30,4 +102,47 @@ public final class DiffOptions {
     public void setPathFilter(Predicate<String> pathFilter) {
         this.pathFilter = pathFilter;
     }
+
+    public PatchBundleOptions getBundleOptions() {
+        return bundleOptions;
+    }
+
+    public void setBundleOptions(PatchBundleOptions bundleOptions) {
+        this.bundleOptions = bundleOptions;
+    }
+
+    public boolean isStoreTargetDigests() {
+        return storeTargetDigests;
+    }
+
+    public void setStoreTargetDigests(boolean storeTargetDigests) {
+        this.storeTargetDigests = storeTargetDigests;
+    }
+
+    public double getReplaceThreshold() {
+        return replaceThreshold;
+    }
+
+    public void setReplaceThreshold(double replaceThreshold) {
+        if (replaceThreshold < 0 || Double.isNaN(replaceThreshold)) {
+            throw new IllegalArgumentException("Replace threshold must not be negative: " + replaceThreshold);
+        }
+        this.replaceThreshold = replaceThreshold;
+    }
+
+    public @Nullable File getDigestFile() {
+        return digestFile;
+    }
+
+    public void setDigestFile(@Nullable File digestFile) {
+        this.digestFile = digestFile;
+    }
+
+    public @Nullable File getPreviousPatchBundle() {
+        return previousPatchBundle;
+    }
+
+    public void setPreviousPatchBundle(@Nullable File previousPatchBundle) {
+        this.previousPatchBundle = previousPatchBundle;
+    }
 }
@@ -4,18 +4,34 @@
  */
 package net.neoforged.binarypatcher;
 
+import org.jspecify.annotations.Nullable;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -31,12 +47,19 @@ public final class Generator {
         private final byte[] baseContent;
         private final byte[] modifiedContent;
         private final EnumSet<PatchBase> bases = EnumSet.noneOf(PatchBase.class);
+        // Position of the entry the task was first created for, see createPatchBundle
+        private long order;
+        /**
+         * The content the patch produces, which differs from the modified content once its constant pool is optimized.
+         */
+        private byte[] patchedContent;
 
         public DiffTask(String targetPath, PatchOperation operation, byte[] baseContent, byte[] modifiedContent) {
             this.targetPath = targetPath;
             this.operation = operation;
             this.baseContent = baseContent;
             this.modifiedContent = modifiedContent;
+            this.patchedContent = modifiedContent;
             this.hashCode = Objects.hash(targetPath, operation, Arrays.hashCode(baseContent), Arrays.hashCode(modifiedContent));
         }
 
@@ -55,17 +78,36 @@ public final class Generator {
             return hashCode;
         }
 
+        boolean canOptimizeConstantPool() {
+            return operation == PatchOperation.MODIFY && targetPath.endsWith(".class");
+        }
+
+        void optimizeConstantPool(ConstantPoolOptimizer optimizer) throws IOException {
+            patchedContent = optimizer.optimizeCached(baseContent, modifiedContent);
+        }
+
         public Patch createPatch(DiffOptions diffOptions) throws IOException {
+            Patch patch;
             switch (operation) {
                 case CREATE:
-                    return Patch.createAdd(targetPath, modifiedContent, bases);
+                    patch = Patch.createAdd(targetPath, modifiedContent, bases);
+                    break;
                 case REMOVE:
                     return Patch.createRemove(targetPath, bases);
                 case MODIFY:
-                    return Patch.createModified(targetPath, baseContent, modifiedContent, bases, diffOptions);
+                    // The constant pool has already been optimized by its own stage, if enabled
+                    patch = Patch.createModified(targetPath, baseContent, patchedContent, bases, diffOptions, false);
+                    double replaceThreshold = diffOptions.getReplaceThreshold();
+                    if (replaceThreshold > 0 && patch.getData().length >= patchedContent.length * replaceThreshold) {
+                        // The delta barely saves anything, so avoid the cost of applying it. The output must not
+                        // depend on which kind of entry is chosen, so this stores what the delta would produce.
+                        patch = Patch.createReplace(targetPath, baseContent, patchedContent, bases);
+                    }
+                    break;
                 default:
                     throw new IllegalStateException("Unknown task operation: " + operation);
             }
+            return diffOptions.isStoreTargetDigests() ? patch.withTargetDigest(patchedContent) : patch;
         }
     }
 
@@ -85,89 +127,295 @@ public final class Generator {
         Map<DiffTask, DiffTask> tasks = new LinkedHashMap<>();
         Predicate<String> pathFilter = diffOptions.getPathFilter();
 
-        // This will be memory intensive.
-        for (PatchBase base : bases) {
-            File baseFile = baseFiles.get(base);
-            File modifiedFile = modifiedFiles.get(base);
-
-            try (ZipFile baseZip = new ZipFile(baseFile); ZipFile modifiedZip = new ZipFile(modifiedFile)) {
-                Enumeration<? extends ZipEntry> baseEntries = baseZip.entries();
-                while (baseEntries.hasMoreElements()) {
-                    ZipEntry baseEntry = baseEntries.nextElement();
-                    // We ignore directories and ignored paths
-                    if (baseEntry.isDirectory() || !pathFilter.test(baseEntry.getName())) {
-                        continue;
+        // Patches of unchanged paths are read up front, since the previous bundle may be overwritten by the output
+        @Nullable InputDigests digests = null;
+        Set<String> unchangedPaths = Collections.emptySet();
+        List<Patch> reusedPatches = new ArrayList<>();
+        Map<PatchBase, Map<String, Long>> unchangedOrders = new EnumMap<>(PatchBase.class);
+        File digestFile = diffOptions.getDigestFile();
+        if (digestFile != null) {
+            digests = InputDigests.collect(baseFiles, modifiedFiles, diffOptions);
+            File previousPatchBundle = diffOptions.getPreviousPatchBundle();
+            if (previousPatchBundle != null && previousPatchBundle.exists() && digestFile.exists()) {
+                InputDigests previousDigests = InputDigests.read(digestFile);
+                if (previousDigests.isDigestOf(previousPatchBundle)) {
+                    unchangedPaths = digests.getUnchangedPaths(previousDigests);
+                    try (PatchBundleReader reader = new PatchBundleReader(previousPatchBundle)) {
+                        for (Patch patch : reader) {
+                            if (unchangedPaths.contains(patch.getTargetPath())) {
+                                reusedPatches.add(patch);
+                            }
+                        }
                     }
+                    log("Reusing " + reusedPatches.size() + " patches for " + unchangedPaths.size() + " unchanged paths");
+                } else {
+                    log("Not reusing any patches, " + previousPatchBundle + " was not generated together with " + digestFile);
+                }
+            }
+        }
 
-                    ZipEntry modifiedEntry = modifiedZip.getEntry(baseEntry.getName());
-
-                    // Determine operation
-                    DiffTask task;
-                    if (modifiedEntry == null) {
-                        task = new DiffTask(
-                                baseEntry.getName(),
-                                PatchOperation.REMOVE,
-                                null,
-                                null
-                        );
-                    } else {
-                        byte[] baseContent = Util.toByteArray(baseZip, baseEntry);
-                        byte[] modifiedContent = Util.toByteArray(modifiedZip, modifiedEntry);
-                        if (Arrays.equals(baseContent, modifiedContent)) {
-                            continue; // The content matches, no need to diff
+        // This will be memory intensive.
+        // The bases are independent of each other, so they are scanned concurrently, but their tasks are merged
+        // in the order of the bases to keep the bundle deterministic. Every entry that is considered gets a position,
+        // which is ordered by base first. Tasks are created in the order of these positions, and reused patches are
+        // placed at the position they were originally created at, so that the output does not depend on which
+        // patches are reused.
+        List<CompletableFuture<List<DiffTask>>> baseTasks = new ArrayList<>(bases.size());
+        ExecutorService workers = null;
+        int parallelism = Math.max(bases.size(), Runtime.getRuntime().availableProcessors());
+        if (parallelism > 1) {
+            workers = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r);
+                t.setName("BinaryPatcherGenerator");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            long firstOrder = 0;
+            for (PatchBase base : bases) {
+                File baseFile = baseFiles.get(base);
+                File modifiedFile = modifiedFiles.get(base);
+                Set<String> skippedPaths = unchangedPaths;
+                Map<String, Long> baseUnchangedOrders = new HashMap<>();
+                unchangedOrders.put(base, baseUnchangedOrders);
+                long baseFirstOrder = firstOrder;
+                firstOrder += 1L << 32;
+                if (workers == null) {
+                    baseTasks.add(CompletableFuture.completedFuture(createDiffTasks(baseFile, modifiedFile, pathFilter,
+                            skippedPaths, baseFirstOrder, baseUnchangedOrders)));
+                } else {
+                    baseTasks.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return createDiffTasks(baseFile, modifiedFile, pathFilter, skippedPaths, baseFirstOrder,
+                                    baseUnchangedOrders);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
                         }
-                        task = new DiffTask(
-                                baseEntry.getName(),
-                                PatchOperation.MODIFY,
-                                baseContent,
-                                modifiedContent
-                        );
-                    }
+                    }, workers));
+                }
+            }
 
-                    // De-Dupe Tasks
+            int baseIndex = 0;
+            for (PatchBase base : bases) {
+                List<DiffTask> diffTasks = join(baseTasks.get(baseIndex++));
+                for (DiffTask task : diffTasks) {
+                    // De-Dupe Tasks, the first task keeps its position
                     DiffTask previousTask = tasks.putIfAbsent(task, task);
                     if (previousTask != null) {
                         task = previousTask;
                     }
                     task.bases.add(base);
                 }
+            }
 
-                // Find new entries
-                Enumeration<? extends ZipEntry> modifiedEntries = modifiedZip.entries();
-                while (modifiedEntries.hasMoreElements()) {
-                    ZipEntry modifiedEntry = modifiedEntries.nextElement();
-                    if (modifiedEntry.isDirectory() || baseZip.getEntry(modifiedEntry.getName()) != null) {
-                        continue; // We ignore directories and modified entries were already processed
-                    }
-
-                    if (!pathFilter.test(modifiedEntry.getName())) {
-                        continue; // Ignored entry
-                    }
+            if (diffOptions.isOptimizeConstantPool()) {
+                optimizeConstantPools(tasks.values(), new ConstantPoolOptimizer(diffOptions.getConstantPoolCacheDirectory()), workers);
+            }
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
 
-                    DiffTask task = new DiffTask(
-                            modifiedEntry.getName(),
-                            PatchOperation.CREATE,
-                            null,
-                            Util.toByteArray(modifiedZip, modifiedEntry)
-                    );
-                    // De-Dupe Tasks
-                    DiffTask previousTask = tasks.putIfAbsent(task, task);
-                    if (previousTask != null) {
-                        task = previousTask;
-                    }
-                    task.bases.add(base);
+        // A patch was created for the first of its bases, at the position of its path in that base
+        Map<Patch, Long> reusedOrders = new IdentityHashMap<>();
+        for (Patch patch : reusedPatches) {
+            @Nullable Long order = null;
+            for (PatchBase base : bases) {
+                if (patch.getBaseTypes().contains(base)) {
+                    order = unchangedOrders.get(base).get(patch.getTargetPath());
+                    break;
                 }
             }
+            if (order == null) {
+                throw new IOException("Previous patch for " + patch.getTargetPath() + " does not match the current inputs");
+            }
+            reusedOrders.put(patch, order);
         }
+        reusedPatches.sort(Comparator.comparing(reusedOrders::get));
 
+        PatchBundleOptions bundleOptions = diffOptions.getBundleOptions();
         try (OutputStream bundleOut = new BufferedOutputStream(new FileOutputStream(patchBundleFile));
-             PatchBundleWriter bundleWriter = new PatchBundleWriter(bundleOut, baseFiles.keySet())) {
+             PatchBundleWriter bundleWriter = bundleOptions.getFormat() == PatchBundleFormat.V1
+                     ? new PatchBundleWriter(bundleOut, baseFiles.keySet(), reusedPatches.size() + tasks.size())
+                     : new PatchBundleWriter(bundleOut, baseFiles.keySet(), bundleOptions)) {
 
             log("Processing " + tasks.size() + " diff tasks");
 
+            Iterator<Patch> reusedIt = reusedPatches.iterator();
+            @Nullable Patch reused = reusedIt.hasNext() ? reusedIt.next() : null;
             for (DiffTask task : tasks.values()) {
+                while (reused != null && reusedOrders.get(reused) < task.order) {
+                    bundleWriter.write(reused);
+                    reused = reusedIt.hasNext() ? reusedIt.next() : null;
+                }
                 bundleWriter.write(task.createPatch(diffOptions));
             }
+            while (reused != null) {
+                bundleWriter.write(reused);
+                reused = reusedIt.hasNext() ? reusedIt.next() : null;
+            }
+        }
+
+        // Only record the digests once the bundle they describe has been written completely
+        if (digests != null) {
+            digests.write(digestFile, patchBundleFile);
+        }
+    }
+
+    /**
+     * Optimizes the constant pools of all modified class files as a stage of its own, since it is independent of
+     * the deltas computed afterward.
+     */
+    private static void optimizeConstantPools(Collection<DiffTask> tasks, ConstantPoolOptimizer optimizer,
+                                              @Nullable ExecutorService workers) throws IOException {
+        List<CompletableFuture<Void>> optimizations = new ArrayList<>();
+        for (DiffTask task : tasks) {
+            if (!task.canOptimizeConstantPool()) {
+                continue;
+            }
+            if (workers == null) {
+                task.optimizeConstantPool(optimizer);
+            } else {
+                optimizations.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        task.optimizeConstantPool(optimizer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, workers));
+            }
+        }
+        for (CompletableFuture<Void> optimization : optimizations) {
+            join(optimization);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Determines the diff tasks of a single base. The removed, added and common entries are found by a merge join
+     * of the sorted entry names of both files. The tasks are returned in the order of the base entries, followed by
+     * the added entries in the order of the modified file.
+     *
+     * @param firstOrder      The position of the first entry of the base.
+     * @param unchangedOrders Receives the positions of the unchanged paths, which get no tasks.
+     */
+    private static List<DiffTask> createDiffTasks(File baseFile, File modifiedFile, Predicate<String> pathFilter,
+                                                  Set<String> unchangedPaths, long firstOrder,
+                                                  Map<String, Long> unchangedOrders) throws IOException {
+        try (ZipFile baseZip = new ZipFile(baseFile); ZipFile modifiedZip = new ZipFile(modifiedFile)) {
+            List<IndexedEntry> baseEntries = indexEntries(baseZip, pathFilter, firstOrder);
+            List<IndexedEntry> modifiedEntries = indexEntries(modifiedZip, pathFilter, firstOrder + baseEntries.size());
+
+            List<EntryPair> pairs = new ArrayList<>(Math.max(baseEntries.size(), modifiedEntries.size()));
+            int baseIndex = 0;
+            int modifiedIndex = 0;
+            while (baseIndex < baseEntries.size() || modifiedIndex < modifiedEntries.size()) {
+                IndexedEntry baseEntry = baseIndex < baseEntries.size() ? baseEntries.get(baseIndex) : null;
+                IndexedEntry modifiedEntry = modifiedIndex < modifiedEntries.size() ? modifiedEntries.get(modifiedIndex) : null;
+                int cmp = baseEntry == null ? 1 : modifiedEntry == null ? -1 : baseEntry.name.compareTo(modifiedEntry.name);
+                if (cmp < 0) {
+                    pairs.add(new EntryPair(baseEntry.order, baseEntry.entry, null));
+                    baseIndex++;
+                } else if (cmp > 0) {
+                    pairs.add(new EntryPair(modifiedEntry.order, null, modifiedEntry.entry));
+                    modifiedIndex++;
+                } else {
+                    pairs.add(new EntryPair(baseEntry.order, baseEntry.entry, modifiedEntry.entry));
+                    baseIndex++;
+                    modifiedIndex++;
+                }
+            }
+            pairs.sort(Comparator.comparingLong(pair -> pair.order));
+
+            List<DiffTask> tasks = new ArrayList<>(pairs.size());
+            for (EntryPair pair : pairs) {
+                String name = pair.base != null ? pair.base.getName() : pair.modified.getName();
+                if (unchangedPaths.contains(name)) {
+                    unchangedOrders.put(name, pair.order);
+                    continue; // The patches of the previous bundle still apply
+                }
+
+                // Determine operation
+                DiffTask task;
+                if (pair.modified == null) {
+                    task = new DiffTask(name, PatchOperation.REMOVE, null, null);
+                } else if (pair.base == null) {
+                    task = new DiffTask(name, PatchOperation.CREATE, null, Util.toByteArray(modifiedZip, pair.modified));
+                } else {
+                    byte[] baseContent = Util.toByteArray(baseZip, pair.base);
+                    byte[] modifiedContent = Util.toByteArray(modifiedZip, pair.modified);
+                    if (Arrays.equals(baseContent, modifiedContent)) {
+                        continue; // The content matches, no need to diff
+                    }
+                    task = new DiffTask(name, PatchOperation.MODIFY, baseContent, modifiedContent);
+                }
+                task.order = pair.order;
+                tasks.add(task);
+            }
+            return tasks;
+        }
+    }
+
+    /**
+     * Reads the central directory of the given file into a list sorted by name, ignoring directories and ignored
+     * paths.
+     *
+     * @param firstOrder The order of the first entry, which is incremented for every following entry.
+     */
+    private static List<IndexedEntry> indexEntries(ZipFile zip, Predicate<String> pathFilter, long firstOrder) {
+        List<IndexedEntry> entries = new ArrayList<>(zip.size());
+        long order = firstOrder;
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry entry = zipEntries.nextElement();
+            if (entry.isDirectory() || !pathFilter.test(entry.getName())) {
+                continue;
+            }
+            entries.add(new IndexedEntry(entry, order++));
+        }
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        return entries;
+    }
+
+    private static final class IndexedEntry {
+        final String name;
+        final ZipEntry entry;
+        final long order;
+
+        IndexedEntry(ZipEntry entry, long order) {
+            this.name = entry.getName();
+            this.entry = entry;
+            this.order = order;
+        }
+    }
+
+    /**
+     * An entry of the base, the modified file, or both. Ordered by the position of the base entry, or for added
+     * entries by the position of the modified entry after all base entries.
+     */
+    private static final class EntryPair {
+        final long order;
+        @Nullable
+        final ZipEntry base;
+        @Nullable
+        final ZipEntry modified;
+
+        EntryPair(long order, @Nullable ZipEntry base, @Nullable ZipEntry modified) {
+            this.order = order;
+            this.base = base;
+            this.modified = modified;
         }
     }
 
@@ -0,0 +1,301 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static net.neoforged.binarypatcher.PatchBundleConstants.BUNDLE_SIGNATURE_V2;
+import static net.neoforged.binarypatcher.PatchBundleConstants.DISTRIBUTION_MASK;
+import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_FLAG_TARGET_DIGEST;
+import static net.neoforged.binarypatcher.PatchBundleConstants.MAX_CHAR;
+import static net.neoforged.binarypatcher.PatchBundleConstants.MIN_CHAR;
+import static net.neoforged.binarypatcher.PatchBundleConstants.V2_HEADER_SIZE;
+
+/**
+ * Random access to the entries of a {@link PatchBundleFormat#V2} patch bundle file.
+ * <p>
+ * The index at the end of the bundle is memory-mapped and read when the bundle is opened, so the entries can be listed
+ * and looked up without decompressing any blocks. Reading the data of an entry only decompresses the block containing it.
+ * Decompressed blocks are softly cached and {@link #readPatch(Entry)} may be called concurrently from multiple threads.
+ */
+public final class IndexedPatchBundle implements AutoCloseable {
+    private final FileChannel channel;
+    private final EnumSet<PatchBase> supportedBaseTypes;
+    private final int propertiesByte;
+    private final int dictSize;
+    private final byte @Nullable [] dictionary;
+    private final long[] blockOffsets;
+    private final int[] blockCompressedLengths;
+    private final int[] blockUncompressedLengths;
+    private final AtomicReferenceArray<SoftReference<byte[]>> blockCache;
+    private final List<Entry> entries;
+    private final Map<String, List<Entry>> entriesByPath;
+
+    public IndexedPatchBundle(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(V2_HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+
+            byte[] signature = new byte[BUNDLE_SIGNATURE_V2.length];
+            header.get(signature);
+            if (!Arrays.equals(signature, BUNDLE_SIGNATURE_V2)) {
+                throw new IOException("Not an indexed patch bundle: " + file);
+            }
+            int bundleFlags = header.get() & 0xFF;
+            this.supportedBaseTypes = PatchBase.fromBitfield(header.get() & 0xFF);
+            int entryCount = header.getInt();
+            int blockCount = header.getInt();
+            this.propertiesByte = header.get() & 0xFF;
+            this.dictSize = header.getInt();
+            long indexOffset = header.getLong();
+            int indexLength = header.getInt();
+            if (entryCount < 0 || blockCount < 0 || indexOffset < V2_HEADER_SIZE || indexLength < 0
+                    || indexOffset + indexLength > channel.size()) {
+                throw new IOException("Corrupted patch bundle header: " + file);
+            }
+
+            if (PatchBundleBlocks.hasDictionary(bundleFlags)) {
+                ByteBuffer dictionaryLength = ByteBuffer.allocate(4);
+                readFully(dictionaryLength, V2_HEADER_SIZE);
+                int length = dictionaryLength.getInt(0);
+                PatchBundleBlocks.checkDictionaryLength(length);
+                ByteBuffer dictionaryData = ByteBuffer.allocate(length);
+                readFully(dictionaryData, V2_HEADER_SIZE + 4);
+                this.dictionary = dictionaryData.array();
+            } else {
+                this.dictionary = null;
+            }
+
+            // The index is parsed completely up front, so it is read onto the heap rather than mapped
+            ByteBuffer index = ByteBuffer.allocate(indexLength);
+            readFully(index, indexOffset);
+            index.flip();
+
+            this.blockOffsets = new long[blockCount];
+            this.blockCompressedLengths = new int[blockCount];
+            this.blockUncompressedLengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockOffsets[i] = index.getLong();
+                blockCompressedLengths[i] = index.getInt();
+                blockUncompressedLengths[i] = index.getInt();
+            }
+            this.blockCache = new AtomicReferenceArray<>(blockCount);
+
+            List<Entry> entries = new ArrayList<>(entryCount);
+            Map<String, List<Entry>> entriesByPath = new HashMap<>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = readIndexEntry(index);
+                entries.add(entry);
+                entriesByPath.computeIfAbsent(entry.targetPath, ignored -> new ArrayList<>(1)).add(entry);
+            }
+            this.entries = Collections.unmodifiableList(entries);
+            this.entriesByPath = entriesByPath;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the file starts with the signature of an indexed patch bundle.
+     */
+    public static boolean isIndexedPatchBundle(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer signature = ByteBuffer.allocate(BUNDLE_SIGNATURE_V2.length);
+            while (signature.hasRemaining()) {
+                if (channel.read(signature) == -1) {
+                    return false;
+                }
+            }
+            return Arrays.equals(signature.array(), BUNDLE_SIGNATURE_V2);
+        }
+    }
+
+    /**
+     * Returns the target distributions declared in the bundle header.
+     */
+    public EnumSet<PatchBase> getSupportedBaseTypes() {
+        return EnumSet.copyOf(supportedBaseTypes);
+    }
+
+    /**
+     * Returns all entries in the order they were written to the bundle.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the entries for the given target path. A path can have multiple entries if they target different
+     * base types.
+     */
+    public List<Entry> getEntries(String targetPath) {
+        List<Entry> result = entriesByPath.get(targetPath);
+        return result != null ? Collections.unmodifiableList(result) : Collections.emptyList();
+    }
+
+    /**
+     * Reads the full patch for the given entry, decompressing its block if it is not cached.
+     */
+    public Patch readPatch(Entry entry) throws IOException {
+        byte[] block = getBlock(entry.block);
+        if (entry.dataOffset > block.length - entry.dataLength) {
+            throw new IOException("Entry " + entry.targetPath + " exceeds its block");
+        }
+        byte[] data = Arrays.copyOfRange(block, entry.dataOffset, entry.dataOffset + entry.dataLength);
+        return new Patch(entry.operation, entry.targetPath, EnumSet.copyOf(entry.baseTypes),
+                entry.operation.hasBaseChecksum() ? entry.baseChecksum : null, data,
+                entry.targetCrc, entry.targetSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] getBlock(int blockIndex) throws IOException {
+        SoftReference<byte[]> cached = blockCache.get(blockIndex);
+        byte[] block = cached != null ? cached.get() : null;
+        if (block == null) {
+            ByteBuffer compressed = ByteBuffer.allocate(blockCompressedLengths[blockIndex]);
+            readFully(compressed, blockOffsets[blockIndex]);
+            block = PatchBundleBlocks.decompress(compressed.array(), blockUncompressedLengths[blockIndex], propertiesByte, dictSize, dictionary);
+            blockCache.set(blockIndex, new SoftReference<>(block));
+        }
+        return block;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of patch bundle");
+            }
+            position += read;
+        }
+    }
+
+    private Entry readIndexEntry(ByteBuffer index) throws IOException {
+        int flags = index.get() & 0xFF;
+        PatchOperation operation = PatchBundleConstants.getOperation(flags);
+        EnumSet<PatchBase> baseTypes = PatchBase.fromBitfield(flags & DISTRIBUTION_MASK);
+        for (PatchBase baseType : baseTypes) {
+            if (!supportedBaseTypes.contains(baseType)) {
+                throw new IOException("Entry targets distribution " + baseType + " not declared in bundle");
+            }
+        }
+
+        byte[] pathBytes = new byte[index.getShort() & 0xFFFF];
+        index.get(pathBytes);
+        for (byte b : pathBytes) {
+            if (b < MIN_CHAR || b > MAX_CHAR) {
+                throw new IOException("String contains invalid character: 0x" + Integer.toHexString(b & 0xFF));
+            }
+        }
+        String targetPath = new String(pathBytes, StandardCharsets.US_ASCII);
+
+        long baseChecksum = operation.hasBaseChecksum() ? index.getInt() : -1;
+        long targetCrc = -1;
+        long targetSize = -1;
+        if ((flags & ENTRY_FLAG_TARGET_DIGEST) != 0) {
+            targetCrc = index.getInt() & 0xFFFFFFFFL;
+            targetSize = index.getInt() & 0xFFFFFFFFL;
+        }
+        int block = index.getInt();
+        int dataOffset = index.getInt();
+        int dataLength = index.getInt();
+        if (block < 0 || block >= blockOffsets.length || dataOffset < 0 || dataLength < 0) {
+            throw new IOException("Corrupted index entry for " + targetPath);
+        }
+        return new Entry(operation, targetPath, baseTypes, baseChecksum, targetCrc, targetSize, block, dataOffset, dataLength);
+    }
+
+    /**
+     * An entry of the bundle index. Use {@link #readPatch(Entry)} to read its data.
+     */
+    public static final class Entry {
+        private final PatchOperation operation;
+        private final String targetPath;
+        private final EnumSet<PatchBase> baseTypes;
+        private final long baseChecksum;
+        private final long targetCrc;
+        private final long targetSize;
+        private final int block;
+        private final int dataOffset;
+        private final int dataLength;
+
+        Entry(PatchOperation operation, String targetPath, EnumSet<PatchBase> baseTypes, long baseChecksum,
+              long targetCrc, long targetSize, int block, int dataOffset, int dataLength) {
+            this.operation = operation;
+            this.targetPath = targetPath;
+            this.baseTypes = baseTypes;
+            this.baseChecksum = baseChecksum;
+            this.targetCrc = targetCrc;
+            this.targetSize = targetSize;
+            this.block = block;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        public PatchOperation getOperation() {
+            return operation;
+        }
+
+        public String getTargetPath() {
+            return targetPath;
+        }
+
+        public EnumSet<PatchBase> getBaseTypes() {
+            return EnumSet.copyOf(baseTypes);
+        }
+
+        /**
+         * Checksum for the base file of the patch, or -1 if the operation has no {@link PatchOperation#hasBaseChecksum() base checksum}.
+         */
+        public long getBaseChecksum() {
+            return baseChecksum;
+        }
+
+        /**
+         * @see Patch#getTargetCrc()
+         */
+        public long getTargetCrc() {
+            return targetCrc;
+        }
+
+        /**
+         * @see Patch#getTargetSize()
+         */
+        public long getTargetSize() {
+            return targetSize;
+        }
+
+        /**
+         * Length of the patch data in bytes, without having to decompress it.
+         */
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + targetPath + " " + baseTypes;
+        }
+    }
+}
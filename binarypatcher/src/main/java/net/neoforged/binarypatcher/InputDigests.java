@@ -0,0 +1,197 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Records the digests of the base and modified content of every path that took part in generating a patch bundle,
+ * so that a later generation can tell which paths have not changed since.
+ * <p>
+ * The digest of an entry is its CRC32 and size as recorded in the central directory of the zip file, so collecting
+ * them does not require decompressing any entry. Since CRC32 is not collision resistant, a changed entry with the same
+ * size and CRC32 as before is considered unchanged, and its previous patch would be reused. This is accepted in exchange
+ * for not having to read any entry, and is only a concern if the inputs can be crafted.
+ * <p>
+ * The file format is line-based UTF-8 text: a header line, a line with the diff settings, a line with the SHA-256 of
+ * the patch bundle that was generated from the inputs, and then one line per base type and path with the
+ * tab-separated base type, base digest, modified digest and path. A digest of {@code -} means the entry does not exist.
+ */
+final class InputDigests {
+    private static final String HEADER = "binarypatcher-digests 2";
+    private static final String SETTINGS_PREFIX = "settings ";
+    private static final String BUNDLE_PREFIX = "bundle ";
+    private static final String ABSENT = "-";
+
+    private final String settings;
+    @Nullable
+    private final String bundleHash; // null until the bundle has been generated
+    private final Map<String, Map<PatchBase, String>> digests;
+
+    private InputDigests(String settings, @Nullable String bundleHash, Map<String, Map<PatchBase, String>> digests) {
+        this.settings = settings;
+        this.bundleHash = bundleHash;
+        this.digests = digests;
+    }
+
+    /**
+     * Collects the digests of all paths that pass the path filter of the diff options.
+     */
+    static InputDigests collect(Map<PatchBase, File> baseFiles, Map<PatchBase, File> modifiedFiles, DiffOptions diffOptions) throws IOException {
+        Predicate<String> pathFilter = diffOptions.getPathFilter();
+        Map<String, Map<PatchBase, String>> digests = new TreeMap<>();
+        for (Map.Entry<PatchBase, File> entry : baseFiles.entrySet()) {
+            PatchBase base = entry.getKey();
+            try (ZipFile baseZip = new ZipFile(entry.getValue()); ZipFile modifiedZip = new ZipFile(modifiedFiles.get(base))) {
+                Set<String> paths = new HashSet<>();
+                addPaths(baseZip, pathFilter, paths);
+                addPaths(modifiedZip, pathFilter, paths);
+                for (String path : paths) {
+                    String digest = digest(baseZip.getEntry(path)) + '\t' + digest(modifiedZip.getEntry(path));
+                    digests.computeIfAbsent(path, p -> new EnumMap<>(PatchBase.class)).put(base, digest);
+                }
+            }
+        }
+        return new InputDigests(getSettings(diffOptions), null, digests);
+    }
+
+    private static void addPaths(ZipFile zip, Predicate<String> pathFilter, Set<String> paths) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && pathFilter.test(entry.getName())) {
+                paths.add(entry.getName());
+            }
+        }
+    }
+
+    private static String digest(@Nullable ZipEntry entry) {
+        if (entry == null) {
+            return ABSENT;
+        }
+        return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+    }
+
+    /**
+     * Describes the diff options that influence the content of the generated patches. Patches can only be reused
+     * from a generation with the same settings.
+     */
+    private static String getSettings(DiffOptions diffOptions) {
+        return "optimizeConstantPool=" + diffOptions.isOptimizeConstantPool()
+                + ",structuralClassDiff=" + diffOptions.isStructuralClassDiff()
+                + ",storeTargetDigests=" + diffOptions.isStoreTargetDigests()
+                + ",replaceThreshold=" + diffOptions.getReplaceThreshold();
+    }
+
+    static InputDigests read(File file) throws IOException {
+        Map<String, Map<PatchBase, String>> digests = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                throw new IOException("Not a digest file: " + file);
+            }
+            String settings = reader.readLine();
+            if (settings == null || !settings.startsWith(SETTINGS_PREFIX)) {
+                throw new IOException("Digest file is missing the diff settings: " + file);
+            }
+            String bundleHash = reader.readLine();
+            if (bundleHash == null || !bundleHash.startsWith(BUNDLE_PREFIX)) {
+                throw new IOException("Digest file is missing the patch bundle hash: " + file);
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) {
+                    throw new IOException("Corrupted line in digest file " + file + ": " + line);
+                }
+                PatchBase base;
+                try {
+                    base = PatchBase.valueOf(parts[0]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown base type in digest file " + file + ": " + parts[0]);
+                }
+                digests.computeIfAbsent(parts[3], p -> new EnumMap<>(PatchBase.class)).put(base, parts[1] + '\t' + parts[2]);
+            }
+            return new InputDigests(settings.substring(SETTINGS_PREFIX.length()),
+                    bundleHash.substring(BUNDLE_PREFIX.length()), digests);
+        }
+    }
+
+    /**
+     * @param patchBundle The patch bundle that was generated from the inputs these digests were collected from.
+     */
+    void write(File file, File patchBundle) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\n");
+            writer.write(SETTINGS_PREFIX + settings + "\n");
+            writer.write(BUNDLE_PREFIX + hashFile(patchBundle) + "\n");
+            for (Map.Entry<String, Map<PatchBase, String>> entry : digests.entrySet()) {
+                for (Map.Entry<PatchBase, String> baseEntry : entry.getValue().entrySet()) {
+                    writer.write(baseEntry.getKey().name() + '\t' + baseEntry.getValue() + '\t' + entry.getKey() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given patch bundle is the one that was generated together with these digests.
+     * Patches must only be reused from that bundle, since the digests say nothing about any other.
+     */
+    boolean isDigestOf(File patchBundle) throws IOException {
+        return hashFile(patchBundle).equals(bundleHash);
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // Standard JCA algorithm is missing
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * @return The paths whose base and modified content is unchanged for all base types since the previous
+     * generation, or an empty set if the previous generation used different diff settings.
+     */
+    Set<String> getUnchangedPaths(InputDigests previous) {
+        Set<String> unchangedPaths = new HashSet<>();
+        if (!settings.equals(previous.settings)) {
+            return unchangedPaths;
+        }
+        for (Map.Entry<String, Map<PatchBase, String>> entry : digests.entrySet()) {
+            if (entry.getValue().equals(previous.digests.get(entry.getKey()))) {
+                unchangedPaths.add(entry.getKey());
+            }
+        }
+        return unchangedPaths;
+    }
+}
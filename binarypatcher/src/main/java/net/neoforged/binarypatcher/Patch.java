@@ -1,23 +1,22 @@
 package net.neoforged.binarypatcher;
 
 import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
 import org.jspecify.annotations.Nullable;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 /**
  * Represents a single entry in the patch bundle.
@@ -26,20 +25,29 @@ public class Patch {
     private final PatchOperation operation;
     private final String targetPath;
     private final EnumSet<PatchBase> baseTypes;
-    private final long baseChecksum; // -1 for non-modify entries
+    private final long baseChecksum; // -1 for entries without a base checksum
     private final byte[] data;
+    private final long targetCrc; // -1 if the entry has no target digest
+    private final long targetSize; // -1 if the entry has no target digest
 
     Patch(PatchOperation operation, String targetPath, EnumSet<PatchBase> baseTypes,
           Long baseChecksum, byte[] data) {
+        this(operation, targetPath, baseTypes, baseChecksum, data, -1, -1);
+    }
+
+    Patch(PatchOperation operation, String targetPath, EnumSet<PatchBase> baseTypes,
+          Long baseChecksum, byte[] data, long targetCrc, long targetSize) {
         this.operation = operation;
         this.targetPath = targetPath;
         this.baseTypes = baseTypes;
-        if (operation == PatchOperation.MODIFY) {
+        if (operation.hasBaseChecksum()) {
             this.baseChecksum = Objects.requireNonNull(baseChecksum, "baseChecksum");
         } else {
             this.baseChecksum = -1;
         }
         this.data = data;
+        this.targetCrc = targetCrc;
+        this.targetSize = targetSize;
     }
 
     public PatchOperation getOperation() {
@@ -57,7 +65,8 @@ public class Patch {
     /**
      * Checksum for the base file of the patch.
      * <p>
-     * Only available for entries where {@link #getOperation()} is {@link PatchOperation#MODIFY}.
+     * Only available for entries where {@link #getOperation()} is {@link PatchOperation#MODIFY} or
+     * {@link PatchOperation#REPLACE}.
      * Otherwise, the value is -1.
      * </p>
      *
@@ -68,7 +77,7 @@ public class Patch {
     }
 
     /**
-     * Returns the entry data. For CREATE entries, this is the file content.
+     * Returns the entry data. For CREATE and REPLACE entries, this is the file content.
      * For MODIFY entries, this is the xdelta patch data.
      * For REMOVE entries, this is an empty array.
      */
@@ -78,7 +87,7 @@ public class Patch {
 
     /**
      * Returns the base checksum as an unsigned long value.
-     * Only valid for MODIFY entries.
+     * Only valid for MODIFY and REPLACE entries.
      */
     public long getBaseChecksumUnsigned() {
         if (baseChecksum == -1) {
@@ -87,6 +96,39 @@ public class Patch {
         return baseChecksum & 0xFFFFFFFFL;
     }
 
+    /**
+     * Returns true if the entry records the CRC32 and size of the file it produces, which allows verifying
+     * the patched file. All entries except REMOVE can have a target digest.
+     */
+    public boolean hasTargetDigest() {
+        return targetCrc != -1;
+    }
+
+    /**
+     * @return The unsigned CRC32 of the patched file, or -1 if the entry has no target digest.
+     */
+    public long getTargetCrc() {
+        return targetCrc;
+    }
+
+    /**
+     * @return The size of the patched file, or -1 if the entry has no target digest.
+     */
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Returns a copy of this entry that records the digest of the given patched file content.
+     */
+    Patch withTargetDigest(byte[] targetData) {
+        if (operation == PatchOperation.REMOVE) {
+            throw new IllegalStateException("REMOVE entries cannot have a target digest");
+        }
+        return new Patch(operation, targetPath, baseTypes, operation.hasBaseChecksum() ? baseChecksum : null,
+                data, crc32(targetData), targetData.length);
+    }
+
     /**
      * @param baseData    Null values indicate that the patch base did not contain the target path.
      * @param patchedData Null indicates the target path has been removed from the patched jar.
@@ -137,30 +179,19 @@ public class Patch {
         }
 
         // Otherwise, create deltas for all bases, then group by the created patch content and emit grouped
-        Collection<List<Map.Entry<PatchBase, byte[]>>> baseDataGroups = baseData
-                .entrySet()
-                .stream()
-                .filter(e -> e.getValue() != null)
-                .collect(Collectors.groupingBy(e -> hashContent(e.getValue())))
-                .values();
+        Collection<List<Map.Entry<PatchBase, byte[]>>> baseDataGroups = groupByContent(baseData);
 
         for (List<Map.Entry<PatchBase, byte[]>> baseDataGroup : baseDataGroups) {
             // The content in the group is identical
             byte[] base = baseDataGroup.get(0).getValue();
 
-            // Optimize the patch data if applicable
-            byte[] actualPatchData = patchedData;
-            if (options.isOptimizeConstantPool() && targetPath.endsWith(".class")) {
-                actualPatchData = shrinkDirtyForPatch(base, actualPatchData);
-            }
-
             // Collect which bases this group comes from
             EnumSet<PatchBase> baseTypes = EnumSet.noneOf(PatchBase.class);
             for (Map.Entry<PatchBase, byte[]> groupEntry : baseDataGroup) {
                 baseTypes.add(groupEntry.getKey());
             }
 
-            byte[] patchData = new Delta().compute(base, actualPatchData);
+            byte[] patchData = computeDelta(targetPath, base, patchedData, options);
             long checksum = checksum(base);
             consumer.accept(new Patch(
                     PatchOperation.MODIFY,
@@ -199,13 +230,16 @@ public class Patch {
                                        byte[] patchedData,
                                        EnumSet<PatchBase> bases,
                                        DiffOptions options) throws IOException {
-        // Optimize the patch data if applicable
-        byte[] actualPatchData = patchedData;
-        if (options.isOptimizeConstantPool() && targetPath.endsWith(".class")) {
-            actualPatchData = shrinkDirtyForPatch(baseData, actualPatchData);
-        }
+        return createModified(targetPath, baseData, patchedData, bases, options, options.isOptimizeConstantPool());
+    }
 
-        byte[] patchData = new Delta().compute(baseData, actualPatchData);
+    static Patch createModified(String targetPath,
+                                byte[] baseData,
+                                byte[] patchedData,
+                                EnumSet<PatchBase> bases,
+                                DiffOptions options,
+                                boolean optimizeConstantPool) throws IOException {
+        byte[] patchData = computeDelta(targetPath, baseData, patchedData, options, optimizeConstantPool);
         long checksum = checksum(baseData);
         return new Patch(
                 PatchOperation.MODIFY,
@@ -216,24 +250,91 @@ public class Patch {
         );
     }
 
-    private static String hashContent(byte[] value) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return Base64.getEncoder().encodeToString(digest.digest(value));
-        } catch (NoSuchAlgorithmException e) {
-            throw new Error(e); // Standard JCA algorithm is missing
+    /**
+     * Creates an entry that replaces the base data with the patched data as a whole, rather than storing a delta.
+     */
+    public static Patch createReplace(String targetPath,
+                                      byte[] baseData,
+                                      byte[] patchedData,
+                                      EnumSet<PatchBase> bases) {
+        return new Patch(
+                PatchOperation.REPLACE,
+                targetPath,
+                bases,
+                checksum(baseData),
+                patchedData
+        );
+    }
+
+    /**
+     * Applies the data of a {@link PatchOperation#MODIFY} patch to the given base data.
+     * The patch data is either an xdelta patch, or a structural class file delta if the patch was created
+     * with {@link DiffOptions#isStructuralClassDiff()}.
+     */
+    public static byte[] applyDelta(byte[] baseData, byte[] patchData) throws IOException {
+        if (ClassFileDelta.isClassFileDelta(patchData)) {
+            return ClassFileDelta.apply(baseData, patchData);
         }
+        return new GDiffPatcher().patch(baseData, patchData);
+    }
+
+    private static byte[] computeDelta(String targetPath, byte[] baseData, byte[] patchedData, DiffOptions options) throws IOException {
+        return computeDelta(targetPath, baseData, patchedData, options, options.isOptimizeConstantPool());
     }
 
-    private static byte[] shrinkDirtyForPatch(byte[] clean, byte[] dirty) {
-        if (clean.length == 0 || dirty.length == 0) {
-            return dirty;
+    /**
+     * @param optimizeConstantPool False if the patched data was already optimized, such as by {@link Generator}.
+     */
+    private static byte[] computeDelta(String targetPath, byte[] baseData, byte[] patchedData, DiffOptions options,
+                                       boolean optimizeConstantPool) throws IOException {
+        boolean classFile = targetPath.endsWith(".class");
+
+        // Optimize the patch data if applicable
+        if (optimizeConstantPool && classFile) {
+            patchedData = ConstantPoolOptimizer.optimize(baseData, patchedData);
+        }
+
+        byte[] patchData = new Delta().compute(baseData, patchedData);
+
+        // Use the structural delta only if it doesn't make the patch larger
+        if (options.isStructuralClassDiff() && classFile) {
+            byte[] classFileDelta = ClassFileDelta.compute(baseData, patchedData);
+            if (classFileDelta != null && classFileDelta.length <= patchData.length) {
+                patchData = classFileDelta;
+            }
+        }
+
+        return patchData;
+    }
+
+    /**
+     * Groups the bases that contain the file by identical content, in the order of the bases.
+     */
+    private static Collection<List<Map.Entry<PatchBase, byte[]>>> groupByContent(EnumMap<PatchBase, byte[]> baseData) {
+        List<List<Map.Entry<PatchBase, byte[]>>> groups = new ArrayList<>();
+        Map<ContentHash, List<List<Map.Entry<PatchBase, byte[]>>>> groupsByHash = new HashMap<>();
+        for (Map.Entry<PatchBase, byte[]> entry : baseData.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+
+            List<List<Map.Entry<PatchBase, byte[]>>> candidates = groupsByHash.computeIfAbsent(ContentHash.of(entry.getValue()), h -> new ArrayList<>(1));
+            List<Map.Entry<PatchBase, byte[]>> group = null;
+            for (List<Map.Entry<PatchBase, byte[]>> candidate : candidates) {
+                // Equal hashes are only a hint, the content decides
+                if (Arrays.equals(candidate.get(0).getValue(), entry.getValue())) {
+                    group = candidate;
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new ArrayList<>();
+                candidates.add(group);
+                groups.add(group);
+            }
+            group.add(entry);
         }
-        ClassReader cleanReader = new ClassReader(clean);
-        ClassReader dirtyReader = new ClassReader(dirty);
-        ClassWriter writer = new ClassWriter(cleanReader, 0);
-        dirtyReader.accept(writer, 0);
-        return writer.toByteArray();
+        return groups;
     }
 
     public static long checksum(byte[] input) {
@@ -241,4 +342,27 @@ public class Patch {
         hasher.update(input);
         return hasher.getValue();
     }
+
+    /**
+     * Computes the CRC32 used for target digests, which is the same checksum zip files record for their entries.
+     */
+    static long crc32(byte[] input) {
+        CRC32 hasher = new CRC32();
+        hasher.update(input, 0, input.length);
+        return hasher.getValue();
+    }
+
+    /**
+     * Throws if the patched content does not match the target digest of the entry, if it has one.
+     */
+    static void verifyTargetDigest(String targetPath, byte[] content, long targetCrc, long targetSize) throws IOException {
+        if (targetCrc == -1) {
+            return;
+        }
+        if (content.length != targetSize || crc32(content) != targetCrc) {
+            throw new IOException("Patched content of " + targetPath + " does not match the target digest of its patch: expected "
+                    + Long.toHexString(targetCrc) + " with " + targetSize + " bytes, but got "
+                    + Long.toHexString(crc32(content)) + " with " + content.length + " bytes");
+        }
+    }
 }
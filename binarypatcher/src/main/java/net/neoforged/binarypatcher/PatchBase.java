@@ -16,6 +16,10 @@ public enum PatchBase {
         this.mask = mask;
     }
 
+    int mask() {
+        return mask;
+    }
+
     static int toBitfield(EnumSet<PatchBase> distributions) {
         int result = 0;
         for (PatchBase dist : distributions) {
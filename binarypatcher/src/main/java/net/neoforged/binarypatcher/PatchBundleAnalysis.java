@@ -0,0 +1,244 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Collects size and cost statistics about the entries of a patch bundle, to guide the choice of generation settings.
+ * <p>
+ * The apply cost of a MODIFY is estimated from the instructions of its GDiff stream: every COPY instruction copies
+ * a range of the base, every DATA instruction inserts literal bytes from the patch. Structural class file deltas
+ * are not broken down into instructions.
+ */
+final class PatchBundleAnalysis {
+    private static final int GDIFF_MAGIC = 0xD1FFD1FF;
+    private static final int GDIFF_EOF = 0;
+    private static final int GDIFF_DATA_MAX = 246;
+    private static final int GDIFF_DATA_USHORT = 247;
+    private static final int GDIFF_DATA_INT = 248;
+    private static final int GDIFF_COPY_USHORT_UBYTE = 249;
+    private static final int GDIFF_COPY_USHORT_USHORT = 250;
+    private static final int GDIFF_COPY_USHORT_INT = 251;
+    private static final int GDIFF_COPY_INT_UBYTE = 252;
+    private static final int GDIFF_COPY_INT_USHORT = 253;
+    private static final int GDIFF_COPY_INT_INT = 254;
+    private static final int GDIFF_COPY_LONG_INT = 255;
+
+    private final List<EntryStats> entries = new ArrayList<>();
+    private final Map<String, PackageStats> packages = new TreeMap<>();
+
+    private PatchBundleAnalysis() {
+    }
+
+    /**
+     * @param baseFile If given, only entries for the given base type are analyzed, and the size of MODIFY patches
+     *                 is compared to the size of the entry in this base.
+     */
+    static PatchBundleAnalysis analyze(File patchBundleFile, @Nullable File baseFile, @Nullable PatchBase baseType) throws IOException {
+        PatchBundleAnalysis analysis = new PatchBundleAnalysis();
+        try (@Nullable ZipFile baseZip = baseFile != null ? new ZipFile(baseFile) : null;
+             PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
+            PatchCursor cursor = new PatchCursor();
+            while (reader.next(cursor)) {
+                if (baseType != null && !cursor.appliesTo(baseType)) {
+                    continue;
+                }
+
+                String targetPath = cursor.getPath().toString();
+                EntryStats stats = new EntryStats(targetPath, cursor.getOperation(), cursor.getData().remaining());
+                if (cursor.getOperation() == PatchOperation.MODIFY) {
+                    if (baseZip != null) {
+                        ZipEntry baseEntry = baseZip.getEntry(targetPath);
+                        stats.baseSize = baseEntry != null ? baseEntry.getSize() : -1;
+                    }
+                    if (!countInstructions(cursor.getData(), stats)) {
+                        stats.structural = true;
+                    }
+                    if (cursor.hasTargetDigest()) {
+                        stats.targetSize = cursor.getTargetSize();
+                    }
+                }
+                analysis.add(stats);
+            }
+        }
+        return analysis;
+    }
+
+    private void add(EntryStats stats) {
+        entries.add(stats);
+
+        int lastSlash = stats.targetPath.lastIndexOf('/');
+        String packageName = lastSlash == -1 ? "" : stats.targetPath.substring(0, lastSlash);
+        PackageStats packageStats = packages.computeIfAbsent(packageName, PackageStats::new);
+        packageStats.entryCount++;
+        switch (stats.operation) {
+            case CREATE:
+                packageStats.createBytes += stats.patchSize;
+                break;
+            case MODIFY:
+                packageStats.modifyBytes += stats.patchSize;
+                packageStats.instructions += stats.copyInstructions + stats.dataInstructions;
+                break;
+            case REPLACE:
+                packageStats.replaceBytes += stats.patchSize;
+                break;
+            case REMOVE:
+                break;
+        }
+    }
+
+    /**
+     * Counts the instructions of a GDiff stream, leaving the buffer position untouched.
+     *
+     * @return False if the data is not a GDiff stream.
+     */
+    private static boolean countInstructions(ByteBuffer patchData, EntryStats stats) {
+        ByteBuffer in = patchData.duplicate();
+        if (in.remaining() < 5 || in.getInt() != GDIFF_MAGIC) {
+            return false;
+        }
+        in.get(); // Version
+
+        long targetSize = 0;
+        while (in.hasRemaining()) {
+            int command = in.get() & 0xFF;
+            long length;
+            if (command == GDIFF_EOF) {
+                break;
+            } else if (command <= GDIFF_DATA_MAX) {
+                length = command;
+            } else if (command == GDIFF_DATA_USHORT) {
+                length = in.getShort() & 0xFFFF;
+            } else if (command == GDIFF_DATA_INT) {
+                length = in.getInt() & 0xFFFFFFFFL;
+            } else {
+                switch (command) {
+                    case GDIFF_COPY_USHORT_UBYTE:
+                        in.getShort();
+                        length = in.get() & 0xFF;
+                        break;
+                    case GDIFF_COPY_USHORT_USHORT:
+                        in.getShort();
+                        length = in.getShort() & 0xFFFF;
+                        break;
+                    case GDIFF_COPY_USHORT_INT:
+                        in.getShort();
+                        length = in.getInt() & 0xFFFFFFFFL;
+                        break;
+                    case GDIFF_COPY_INT_UBYTE:
+                        in.getInt();
+                        length = in.get() & 0xFF;
+                        break;
+                    case GDIFF_COPY_INT_USHORT:
+                        in.getInt();
+                        length = in.getShort() & 0xFFFF;
+                        break;
+                    case GDIFF_COPY_INT_INT:
+                        in.getInt();
+                        length = in.getInt() & 0xFFFFFFFFL;
+                        break;
+                    case GDIFF_COPY_LONG_INT:
+                        in.getLong();
+                        length = in.getInt() & 0xFFFFFFFFL;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown GDiff command: " + command);
+                }
+                stats.copyInstructions++;
+                stats.copiedBytes += length;
+                targetSize += length;
+                continue;
+            }
+
+            in.position(in.position() + (int) length);
+            stats.dataInstructions++;
+            stats.insertedBytes += length;
+            targetSize += length;
+        }
+        stats.targetSize = targetSize;
+        return true;
+    }
+
+    List<EntryStats> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the statistics of all packages, with the root package being the empty string.
+     */
+    List<PackageStats> getPackages() {
+        return new ArrayList<>(packages.values());
+    }
+
+    static final class EntryStats {
+        final String targetPath;
+        final PatchOperation operation;
+        final int patchSize;
+        /**
+         * The size of the entry in the base, or -1 if no base was given or the entry is not part of it.
+         */
+        long baseSize = -1;
+        /**
+         * The size of the patched entry, or -1 if unknown.
+         */
+        long targetSize = -1;
+        /**
+         * True if the entry is a structural class file delta, for which no instructions are counted.
+         */
+        boolean structural;
+        int copyInstructions;
+        int dataInstructions;
+        long copiedBytes;
+        long insertedBytes;
+
+        EntryStats(String targetPath, PatchOperation operation, int patchSize) {
+            this.targetPath = targetPath;
+            this.operation = operation;
+            this.patchSize = patchSize;
+        }
+
+        /**
+         * Returns the size of the patch relative to the size of its base entry, or to the patched entry if the base
+         * is unknown. Returns -1 if neither is known.
+         */
+        double getRatio() {
+            long reference = baseSize > 0 ? baseSize : targetSize;
+            return reference > 0 ? (double) patchSize / reference : -1;
+        }
+
+        /**
+         * A MODIFY whose patch is at least as large as the patched entry would be smaller as a CREATE,
+         * and would not need the base to be read either.
+         */
+        boolean isCreateCheaper() {
+            return operation == PatchOperation.MODIFY && targetSize >= 0 && patchSize >= targetSize;
+        }
+    }
+
+    static final class PackageStats {
+        final String packageName;
+        int entryCount;
+        long createBytes;
+        long modifyBytes;
+        long replaceBytes;
+        long instructions;
+
+        PackageStats(String packageName) {
+            this.packageName = packageName;
+        }
+
+        long getTotalBytes() {
+            return createBytes + modifyBytes + replaceBytes;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAInputStream;
+import org.tukaani.xz.LZMAOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Compression of the independently compressed blocks of {@link PatchBundleFormat#V2} bundles.
+ * <p>
+ * Blocks are raw LZMA streams without end marker. The LZMA properties and dictionary size are stored once in the
+ * bundle header, and the uncompressed size of each block is stored in the block header and the index.
+ * If the bundle has a shared dictionary, every block is compressed with it as the LZMA preset dictionary.
+ */
+final class PatchBundleBlocks {
+    private PatchBundleBlocks() {
+    }
+
+    /**
+     * Encodes the lc/lp/pb properties of the given options into a single byte, as in the .lzma file header.
+     */
+    static int getPropertiesByte(LZMA2Options options) {
+        return (options.getPb() * 5 + options.getLp()) * 9 + options.getLc();
+    }
+
+    /**
+     * Compresses a block, using the preset dictionary of the options if they have one.
+     */
+    static byte[] compress(byte[] data, int length, LZMA2Options options) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (LZMAOutputStream lzmaOutput = new LZMAOutputStream(compressed, options, false)) {
+            lzmaOutput.write(data, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    static byte[] decompress(byte[] compressed, int uncompressedLength, int propertiesByte, int dictSize,
+                             byte @Nullable [] presetDict) throws IOException {
+        byte[] result = new byte[uncompressedLength];
+        try (DataInputStream lzmaInput = new DataInputStream(new LZMAInputStream(
+                new ByteArrayInputStream(compressed), uncompressedLength, (byte) propertiesByte, dictSize, presetDict))) {
+            lzmaInput.readFully(result);
+        }
+        return result;
+    }
+
+    /**
+     * Validates the flags of a V2 header.
+     *
+     * @return True if the header is followed by a shared dictionary.
+     */
+    static boolean hasDictionary(int bundleFlags) throws IOException {
+        if ((bundleFlags & ~PatchBundleConstants.V2_SUPPORTED_FLAGS) != 0) {
+            throw new IOException("Unsupported patch bundle flags: 0x" + Integer.toHexString(bundleFlags));
+        }
+        return (bundleFlags & PatchBundleConstants.V2_FLAG_DICTIONARY) != 0;
+    }
+
+    static void checkDictionaryLength(int length) throws IOException {
+        if (length < 0 || length > PatchBundleConstants.V2_MAX_DICTIONARY_SIZE) {
+            throw new IOException("Invalid patch bundle dictionary length: " + length);
+        }
+    }
+}
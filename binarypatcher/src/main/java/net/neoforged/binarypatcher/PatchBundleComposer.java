@@ -0,0 +1,189 @@
+package net.neoforged.binarypatcher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composes a chain of patch bundles, which would otherwise be applied one after the other, into a single bundle
+ * that has the same effect when applied in one pass.
+ * <p>
+ * For every path and base type, the operations of all bundles are folded into a single effective operation:
+ * <ul>
+ *     <li>A CREATE or REMOVE replaces everything that happened to the path before.</li>
+ *     <li>A MODIFY or REPLACE of created content is applied right away, after validating its checksum, and becomes
+ *     a CREATE.</li>
+ *     <li>A MODIFY or REPLACE of base content cannot be validated without the base, so consecutive MODIFY and
+ *     REPLACE entries are kept in order and are applied after one another by the patcher.</li>
+ * </ul>
+ * The composed bundle only supports the base types that are supported by every bundle of the chain.
+ */
+public final class PatchBundleComposer {
+    private PatchBundleComposer() {
+    }
+
+    /**
+     * Composes the given bundles, which are applied in the given order, and writes the result to a new bundle.
+     */
+    public static void compose(List<File> patchBundleFiles, File outputFile, PatchBundleOptions bundleOptions) throws IOException {
+        EnumSet<PatchBase> supportedBaseTypes = getSupportedBaseTypes(patchBundleFiles);
+        List<Patch> patches = compose(patchBundleFiles, supportedBaseTypes);
+
+        try (OutputStream bundleOut = new BufferedOutputStream(new FileOutputStream(outputFile));
+             PatchBundleWriter bundleWriter = bundleOptions.getFormat() == PatchBundleFormat.V1
+                     ? new PatchBundleWriter(bundleOut, supportedBaseTypes, patches.size())
+                     : new PatchBundleWriter(bundleOut, supportedBaseTypes, bundleOptions)) {
+            for (Patch patch : patches) {
+                bundleWriter.write(patch);
+            }
+        }
+    }
+
+    /**
+     * Composes the given bundles, which are applied in the given order, into the entries of a single bundle.
+     */
+    public static List<Patch> compose(List<File> patchBundleFiles) throws IOException {
+        return compose(patchBundleFiles, getSupportedBaseTypes(patchBundleFiles));
+    }
+
+    private static List<Patch> compose(List<File> patchBundleFiles, EnumSet<PatchBase> supportedBaseTypes) throws IOException {
+        // The effective operations of every path, by base type. Base types that went through the same operations
+        // share the same list, which also lets them share the work of applying a MODIFY to created content.
+        Map<String, Map<PatchBase, List<Patch>>> effectivePatches = new LinkedHashMap<>();
+        for (File patchBundleFile : patchBundleFiles) {
+            try (PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
+                for (Patch patch : reader) {
+                    Map<PatchBase, List<Patch>> byBaseType = effectivePatches.computeIfAbsent(patch.getTargetPath(),
+                            k -> new EnumMap<>(PatchBase.class));
+                    Map<List<Patch>, List<Patch>> transitions = new IdentityHashMap<>();
+                    for (PatchBase baseType : patch.getBaseTypes()) {
+                        if (!supportedBaseTypes.contains(baseType)) {
+                            continue;
+                        }
+                        List<Patch> previous = byBaseType.getOrDefault(baseType, Collections.emptyList());
+                        List<Patch> next = transitions.get(previous);
+                        if (next == null) {
+                            next = append(previous, patch, patchBundleFile.getName());
+                            transitions.put(previous, next);
+                        }
+                        byBaseType.put(baseType, next);
+                    }
+                }
+            }
+        }
+
+        // Base types with the same effective operations share their entries
+        List<Patch> result = new ArrayList<>();
+        for (Map.Entry<String, Map<PatchBase, List<Patch>>> entry : effectivePatches.entrySet()) {
+            Map<List<Patch>, EnumSet<PatchBase>> groups = new LinkedHashMap<>();
+            for (Map.Entry<PatchBase, List<Patch>> byBaseType : entry.getValue().entrySet()) {
+                EnumSet<PatchBase> group = null;
+                for (Map.Entry<List<Patch>, EnumSet<PatchBase>> existingGroup : groups.entrySet()) {
+                    if (samePatches(existingGroup.getKey(), byBaseType.getValue())) {
+                        group = existingGroup.getValue();
+                        break;
+                    }
+                }
+                if (group == null) {
+                    group = EnumSet.noneOf(PatchBase.class);
+                    groups.put(byBaseType.getValue(), group);
+                }
+                group.add(byBaseType.getKey());
+            }
+
+            for (Map.Entry<List<Patch>, EnumSet<PatchBase>> group : groups.entrySet()) {
+                for (Patch patch : group.getKey()) {
+                    result.add(new Patch(patch.getOperation(), entry.getKey(), group.getValue(),
+                            patch.getOperation().hasBaseChecksum() ? patch.getBaseChecksum() : null, patch.getData(),
+                            patch.getTargetCrc(), patch.getTargetSize()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the effective operations after applying the patch on top of the previous operations.
+     * The previous list is not modified.
+     */
+    static List<Patch> append(List<Patch> previous, Patch patch, String patchBundleName) throws IOException {
+        switch (patch.getOperation()) {
+            case CREATE:
+            case REMOVE:
+                return Collections.singletonList(patch);
+            case MODIFY:
+            case REPLACE:
+                if (previous.isEmpty() || previous.get(0).getOperation().hasBaseChecksum()) {
+                    List<Patch> result = new ArrayList<>(previous.size() + 1);
+                    result.addAll(previous);
+                    result.add(patch);
+                    return result;
+                } else if (previous.get(0).getOperation() == PatchOperation.REMOVE) {
+                    throw new IllegalStateException("Patch in " + patchBundleName + " targets " + patch.getTargetPath()
+                            + ", but it was deleted by an earlier patch bundle.");
+                }
+
+                byte[] content = previous.get(0).getData();
+                long checksum = Patch.checksum(content);
+                if (checksum != patch.getBaseChecksumUnsigned()) {
+                    throw new IOException("Patch in " + patchBundleName + " expected " + patch.getTargetPath()
+                            + " to have the checksum " + Long.toHexString(patch.getBaseChecksumUnsigned())
+                            + " but it was " + Long.toHexString(checksum));
+                }
+                byte[] patched = patch.getOperation() == PatchOperation.REPLACE ? patch.getData() : Patch.applyDelta(content, patch.getData());
+                Patch.verifyTargetDigest(patch.getTargetPath(), patched, patch.getTargetCrc(), patch.getTargetSize());
+                return Collections.singletonList(new Patch(PatchOperation.CREATE, patch.getTargetPath(),
+                        patch.getBaseTypes(), null, patched, patch.getTargetCrc(), patch.getTargetSize()));
+            default:
+                throw new IllegalStateException("Unknown patch operation: " + patch.getOperation());
+        }
+    }
+
+    private static boolean samePatches(List<Patch> a, List<Patch> b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            Patch patchA = a.get(i);
+            Patch patchB = b.get(i);
+            if (patchA.getOperation() != patchB.getOperation()
+                    || patchA.getBaseChecksum() != patchB.getBaseChecksum()
+                    || patchA.getTargetCrc() != patchB.getTargetCrc()
+                    || !Arrays.equals(patchA.getData(), patchB.getData())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static EnumSet<PatchBase> getSupportedBaseTypes(List<File> patchBundleFiles) throws IOException {
+        if (patchBundleFiles.isEmpty()) {
+            throw new IllegalArgumentException("At least one patch bundle must be given");
+        }
+
+        EnumSet<PatchBase> supportedBaseTypes = EnumSet.allOf(PatchBase.class);
+        for (File patchBundleFile : patchBundleFiles) {
+            try (PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
+                supportedBaseTypes.retainAll(reader.getSupportedBaseTypes());
+            }
+        }
+        if (supportedBaseTypes.isEmpty()) {
+            throw new IllegalArgumentException("The patch bundles " + patchBundleFiles + " have no base type in common");
+        }
+        return supportedBaseTypes;
+    }
+}
@@ -1,7 +1,7 @@
 package net.neoforged.binarypatcher;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.EnumSet;
 
 /**
  * Package-private constants shared between PatchBundleWriter and PatchBundleReader.
@@ -9,12 +9,29 @@ import java.util.EnumSet;
 class PatchBundleConstants {
     // File signature
     static final byte[] BUNDLE_SIGNATURE = "NFPATCHBUNDLE001".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BUNDLE_SIGNATURE_V2 = "NFPATCHBUNDLE002".getBytes(StandardCharsets.US_ASCII);
+
+    // Size of the fixed V2 header: signature, flags, base types, entry count, block count,
+    // LZMA properties, dictionary size, index offset and index length
+    static final int V2_HEADER_SIZE = 16 + 1 + 1 + 4 + 4 + 1 + 4 + 8 + 4;
+    // Size of the header preceding each V2 block: uncompressed length, compressed length and entry count
+    static final int V2_BLOCK_HEADER_SIZE = 12;
+
+    // Set if the V2 header is followed by the length and content of the shared LZMA preset dictionary
+    static final int V2_FLAG_DICTIONARY = 0x01;
+    static final int V2_SUPPORTED_FLAGS = V2_FLAG_DICTIONARY;
+    // LZMA cannot use a preset dictionary that exceeds its dictionary size
+    static final int V2_MAX_DICTIONARY_SIZE = 1024 * 1024;
     
     // Entry type constants
     static final int ENTRY_TYPE_MASK = 0x18;
     static final int ENTRY_TYPE_CREATE = 0x00;
     static final int ENTRY_TYPE_MODIFY = 0x08;
     static final int ENTRY_TYPE_REMOVE = 0x10;
+    static final int ENTRY_TYPE_REPLACE = 0x18;
+
+    // Set if the entry header is followed by the CRC32 and size of the patched file
+    static final int ENTRY_FLAG_TARGET_DIGEST = 0x20;
     
     // Distribution bitfield mask
     static final int DISTRIBUTION_MASK = 0x07;
@@ -23,6 +40,45 @@ class PatchBundleConstants {
     static final int MIN_CHAR = 0x20;
     static final int MAX_CHAR = 0x7E;
 
+    static PatchOperation getOperation(int flags) throws IOException {
+        int entryTypeBits = flags & ENTRY_TYPE_MASK;
+        switch (entryTypeBits) {
+            case ENTRY_TYPE_CREATE:
+                return PatchOperation.CREATE;
+            case ENTRY_TYPE_MODIFY:
+                return PatchOperation.MODIFY;
+            case ENTRY_TYPE_REMOVE:
+                return PatchOperation.REMOVE;
+            case ENTRY_TYPE_REPLACE:
+                return PatchOperation.REPLACE;
+            default:
+                throw new IOException("Unknown entry type: " + entryTypeBits);
+        }
+    }
+
+    static int getEntryType(PatchOperation operation) {
+        switch (operation) {
+            case CREATE:
+                return ENTRY_TYPE_CREATE;
+            case MODIFY:
+                return ENTRY_TYPE_MODIFY;
+            case REMOVE:
+                return ENTRY_TYPE_REMOVE;
+            case REPLACE:
+                return ENTRY_TYPE_REPLACE;
+            default:
+                throw new IllegalArgumentException("Unknown patch operation: " + operation);
+        }
+    }
+
+    /**
+     * Returns true if an entry with the given flags has a base checksum.
+     */
+    static boolean hasBaseChecksum(int flags) {
+        int entryTypeBits = flags & ENTRY_TYPE_MASK;
+        return entryTypeBits == ENTRY_TYPE_MODIFY || entryTypeBits == ENTRY_TYPE_REPLACE;
+    }
+
     // Private constructor to prevent instantiation
     private PatchBundleConstants() {
         throw new AssertionError("Cannot instantiate constants class");
@@ -0,0 +1,164 @@
+package net.neoforged.binarypatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Trains the shared dictionary of {@link PatchBundleFormat#V2} bundles, which every block is compressed against
+ * as an LZMA preset dictionary.
+ * <p>
+ * The dictionary consists of the segments that occur most often across the sampled block data, such as constant pool
+ * strings, package names and descriptors that are repeated in many class patches. Occurrences are counted per rolling
+ * hash of every {@value #WINDOW}-byte window in a fixed-size table, so memory usage does not depend on the size of the
+ * bundle. The most frequent segments are placed at the end of the dictionary, where LZMA can reference them with the
+ * shortest distances.
+ */
+final class PatchBundleDictionary {
+    /**
+     * Length of the windows whose occurrences are counted. Segments consist of two consecutive windows.
+     */
+    private static final int WINDOW = 16;
+    private static final int SEGMENT = WINDOW * 2;
+    private static final int HASH_BITS = 20;
+    private static final long PRIME = 0x100000001B3L;
+    private static final long PRIME_POW_WINDOW;
+    /**
+     * At most this many bytes of block data are sampled, spread evenly across all blocks.
+     */
+    private static final int MAX_SAMPLE_SIZE = 16 * 1024 * 1024;
+    /**
+     * Segments whose windows occur less often than this in total are not worth putting into the dictionary.
+     */
+    private static final int MIN_SCORE = 4;
+
+    static {
+        long pow = 1;
+        for (int i = 0; i < WINDOW; i++) {
+            pow *= PRIME;
+        }
+        PRIME_POW_WINDOW = pow;
+    }
+
+    private PatchBundleDictionary() {
+    }
+
+    /**
+     * @return The trained dictionary of at most the given size, which is empty if the samples contain
+     * no repeated content.
+     */
+    static byte[] train(List<ByteBuffer> blocks, int dictionarySize) {
+        int maxSegments = dictionarySize / SEGMENT;
+        if (maxSegments == 0) {
+            return new byte[0];
+        }
+        List<ByteBuffer> samples = sample(blocks);
+
+        int[] counts = new int[1 << HASH_BITS];
+        for (ByteBuffer sample : samples) {
+            byte[] data = sample.array();
+            int offset = sample.arrayOffset() + sample.position();
+            long hash = 0;
+            for (int i = 0; i < sample.remaining(); i++) {
+                hash = roll(hash, data, offset, i);
+                if (i >= WINDOW - 1) {
+                    counts[bucket(hash)]++;
+                }
+            }
+        }
+
+        // Keep the best segments, ignoring segments with the same content as one that is already kept
+        PriorityQueue<Segment> best = new PriorityQueue<>(Comparator.comparingInt((Segment segment) -> segment.score));
+        Set<Long> bestContent = new HashSet<>();
+        for (ByteBuffer sample : samples) {
+            byte[] data = sample.array();
+            int offset = sample.arrayOffset() + sample.position();
+            long hash = 0;
+            long previousWindowHash = 0;
+            for (int i = 0; i < sample.remaining(); i++) {
+                hash = roll(hash, data, offset, i);
+                int windowStart = i - WINDOW + 1;
+                if (windowStart < 0 || windowStart % WINDOW != 0) {
+                    continue;
+                }
+                if (windowStart >= WINDOW) {
+                    int score = counts[bucket(previousWindowHash)] + counts[bucket(hash)];
+                    long content = previousWindowHash * 31 + hash;
+                    if (score >= MIN_SCORE && !bestContent.contains(content)
+                            && (best.size() < maxSegments || score > best.peek().score)) {
+                        if (best.size() == maxSegments) {
+                            bestContent.remove(best.poll().content);
+                        }
+                        best.add(new Segment(data, offset + windowStart - WINDOW, score, content));
+                        bestContent.add(content);
+                    }
+                }
+                previousWindowHash = hash;
+            }
+        }
+
+        // The queue yields the least frequent segments first, so the most frequent ones end up last
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(best.size() * SEGMENT);
+        while (!best.isEmpty()) {
+            Segment segment = best.poll();
+            dictionary.write(segment.data, segment.offset, SEGMENT);
+        }
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Takes an evenly sized prefix of every block, so that the sample covers the entire bundle.
+     */
+    private static List<ByteBuffer> sample(List<ByteBuffer> blocks) {
+        long totalSize = 0;
+        for (ByteBuffer block : blocks) {
+            totalSize += block.remaining();
+        }
+        if (totalSize <= MAX_SAMPLE_SIZE) {
+            return blocks;
+        }
+
+        List<ByteBuffer> samples = new ArrayList<>(blocks.size());
+        for (ByteBuffer block : blocks) {
+            int length = (int) (block.remaining() * (long) MAX_SAMPLE_SIZE / totalSize);
+            ByteBuffer sample = block.duplicate();
+            sample.limit(sample.position() + length);
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * Adds the byte at index i to the rolling hash of the window ending at it.
+     */
+    private static long roll(long hash, byte[] data, int offset, int i) {
+        hash = hash * PRIME + (data[offset + i] & 0xFF);
+        if (i >= WINDOW) {
+            hash -= (data[offset + i - WINDOW] & 0xFF) * PRIME_POW_WINDOW;
+        }
+        return hash;
+    }
+
+    private static int bucket(long hash) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+    }
+
+    private static final class Segment {
+        final byte[] data;
+        final int offset;
+        final int score;
+        final long content;
+
+        Segment(byte[] data, int offset, int score, long content) {
+            this.data = data;
+            this.offset = offset;
+            this.score = score;
+            this.content = content;
+        }
+    }
+}
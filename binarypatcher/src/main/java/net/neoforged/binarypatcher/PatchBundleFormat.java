@@ -0,0 +1,17 @@
+package net.neoforged.binarypatcher;
+
+/**
+ * The container formats a patch bundle can be written in. See the README for a description of both formats.
+ */
+public enum PatchBundleFormat {
+    /**
+     * A single LZMA stream containing the header and all entries ({@code NFPATCHBUNDLE001}).
+     * Entries can only be read sequentially.
+     */
+    V1,
+    /**
+     * Independently compressed blocks of entries, followed by an uncompressed index of all entries
+     * ({@code NFPATCHBUNDLE002}). Allows reading individual entries and decoding blocks concurrently.
+     */
+    V2
+}
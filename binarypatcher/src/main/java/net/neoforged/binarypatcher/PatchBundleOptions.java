@@ -0,0 +1,72 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.concurrent.Executor;
+
+public final class PatchBundleOptions {
+    /**
+     * The container format the bundle is written in.
+     */
+    private PatchBundleFormat format = PatchBundleFormat.V1;
+
+    /**
+     * For {@link PatchBundleFormat#V2} bundles, the uncompressed size in bytes after which the current block is
+     * compressed and a new block is started. Entries never span blocks, so a single large entry can exceed this.
+     */
+    private int blockSize = 1024 * 1024;
+
+    /**
+     * For {@link PatchBundleFormat#V2} bundles, an optional executor that is used to compress blocks concurrently
+     * while further entries are being written. If null, blocks are compressed on the writing thread.
+     */
+    @Nullable
+    private Executor compressionExecutor;
+
+    /**
+     * For {@link PatchBundleFormat#V2} bundles, the maximum size of a dictionary that is trained from the entries and
+     * shared by all blocks, or 0 to not use one. Patches share a lot of content, such as package names and descriptors,
+     * which a shared dictionary makes available to every block. Since the dictionary is trained from all entries,
+     * blocks are only compressed once all entries have been written.
+     */
+    private int dictionarySize;
+
+    public PatchBundleFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(PatchBundleFormat format) {
+        this.format = format;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    public @Nullable Executor getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    public void setCompressionExecutor(@Nullable Executor compressionExecutor) {
+        this.compressionExecutor = compressionExecutor;
+    }
+
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    public void setDictionarySize(int dictionarySize) {
+        if (dictionarySize < 0 || dictionarySize > PatchBundleConstants.V2_MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Dictionary size must be between 0 and "
+                    + PatchBundleConstants.V2_MAX_DICTIONARY_SIZE + ": " + dictionarySize);
+        }
+        this.dictionarySize = dictionarySize;
+    }
+}
@@ -1,5 +1,6 @@
 package net.neoforged.binarypatcher;
 
+import org.jspecify.annotations.Nullable;
 import org.tukaani.xz.LZMAInputStream;
 
 import java.io.BufferedInputStream;
@@ -8,18 +9,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static net.neoforged.binarypatcher.PatchBundleConstants.BUNDLE_SIGNATURE;
-import static net.neoforged.binarypatcher.PatchBundleConstants.DISTRIBUTION_MASK;
-import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_TYPE_CREATE;
-import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_TYPE_MASK;
-import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_TYPE_MODIFY;
-import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_TYPE_REMOVE;
+import static net.neoforged.binarypatcher.PatchBundleConstants.BUNDLE_SIGNATURE_V2;
+import static net.neoforged.binarypatcher.PatchBundleConstants.ENTRY_FLAG_TARGET_DIGEST;
 import static net.neoforged.binarypatcher.PatchBundleConstants.MAX_CHAR;
 import static net.neoforged.binarypatcher.PatchBundleConstants.MIN_CHAR;
 
@@ -29,36 +33,99 @@ import static net.neoforged.binarypatcher.PatchBundleConstants.MIN_CHAR;
  * 1. Create reader with input stream
  * 2. Inspect getTargetDistributions() and getEntryCount()
  * 3. Iterate through entries using the iterator
+ * <p>
+ * Both the {@link PatchBundleFormat#V1} and the {@link PatchBundleFormat#V2} format are supported. V2 bundles are
+ * read block by block. If an executor is given, the following blocks are decompressed on it while the entries of
+ * the current block are being consumed. Use {@link IndexedPatchBundle} for random access to entries of V2 bundles.
  */
 public class PatchBundleReader implements Iterable<Patch>, AutoCloseable {
     private final DataInputStream input;
     private final EnumSet<PatchBase> supportedBaseTypes;
     private final int entryCount;
+    // Holds the header of the entry being read by readEntry
+    private final PatchCursor entryHeader = new PatchCursor();
     private int entriesRead;
     private boolean closed;
 
     public PatchBundleReader(File file) throws IOException {
-        this(new BufferedInputStream(new FileInputStream(file)));
+        this(file, null);
     }
 
     public PatchBundleReader(InputStream input) throws IOException {
-        this.input = new DataInputStream(new LZMAInputStream(input));
+        this(input, null);
+    }
+
+    /**
+     * @param blockExecutor Executor used to decompress the blocks of V2 bundles ahead of time, or null to decompress
+     *                      them on the reading thread. Blocks that have not been started when they are needed are
+     *                      decompressed on the reading thread, so this may be the executor the reader itself runs on.
+     */
+    public PatchBundleReader(File file, @Nullable Executor blockExecutor) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file)), blockExecutor);
+    }
 
-        // Read and validate signature
-        byte[] signature = new byte[BUNDLE_SIGNATURE.length];
-        this.input.readFully(signature);
-        if (!java.util.Arrays.equals(signature, BUNDLE_SIGNATURE)) {
-            throw new IOException("Invalid bundle signature");
+    /**
+     * @param blockExecutor See {@link #PatchBundleReader(File, Executor)}
+     */
+    public PatchBundleReader(InputStream input, @Nullable Executor blockExecutor) throws IOException {
+        if (!input.markSupported()) {
+            input = new BufferedInputStream(input);
         }
 
-        // Read entry count
-        this.entryCount = this.input.readInt();
-        if (this.entryCount < 0) {
-            throw new IOException("Invalid entry count: " + this.entryCount);
+        // V1 bundles are a single LZMA stream, while V2 bundles start with an uncompressed signature
+        byte[] signature = new byte[BUNDLE_SIGNATURE_V2.length];
+        input.mark(signature.length);
+        int read = 0;
+        while (read < signature.length) {
+            int n = input.read(signature, read, signature.length - read);
+            if (n == -1) {
+                break;
+            }
+            read += n;
         }
 
-        // Read target distributions
-        int distBitfield = this.input.readUnsignedByte();
+        int distBitfield;
+        if (read == signature.length && Arrays.equals(signature, BUNDLE_SIGNATURE_V2)) {
+            DataInputStream header = new DataInputStream(input);
+            int bundleFlags = header.readUnsignedByte();
+            distBitfield = header.readUnsignedByte();
+            this.entryCount = header.readInt();
+            int blockCount = header.readInt();
+            int propertiesByte = header.readUnsignedByte();
+            int dictSize = header.readInt();
+            header.readLong(); // Index offset
+            header.readInt(); // Index length
+            if (this.entryCount < 0 || blockCount < 0) {
+                throw new IOException("Invalid entry or block count: " + this.entryCount + ", " + blockCount);
+            }
+            byte @Nullable [] dictionary = null;
+            if (PatchBundleBlocks.hasDictionary(bundleFlags)) {
+                int dictionaryLength = header.readInt();
+                PatchBundleBlocks.checkDictionaryLength(dictionaryLength);
+                dictionary = new byte[dictionaryLength];
+                header.readFully(dictionary);
+            }
+            this.input = new DataInputStream(new BlockInputStream(header, blockCount, propertiesByte, dictSize, dictionary, blockExecutor));
+        } else {
+            input.reset();
+            this.input = new DataInputStream(new LZMAInputStream(input));
+
+            // Read and validate signature
+            signature = new byte[BUNDLE_SIGNATURE.length];
+            this.input.readFully(signature);
+            if (!Arrays.equals(signature, BUNDLE_SIGNATURE)) {
+                throw new IOException("Invalid bundle signature");
+            }
+
+            // Read entry count
+            this.entryCount = this.input.readInt();
+            if (this.entryCount < 0) {
+                throw new IOException("Invalid entry count: " + this.entryCount);
+            }
+
+            // Read target distributions
+            distBitfield = this.input.readUnsignedByte();
+        }
         this.supportedBaseTypes = PatchBase.fromBitfield(distBitfield);
 
         this.entriesRead = 0;
@@ -107,92 +174,142 @@ public class PatchBundleReader implements Iterable<Patch>, AutoCloseable {
      * @return the next entry, or null if all entries have been read
      */
     public Patch readEntry() throws IOException {
+        if (!readEntryHeader(entryHeader)) {
+            return null;
+        }
+
+        byte[] data = new byte[readDataLength(entryHeader)];
+        input.readFully(data);
+
+        entriesRead++;
+        PatchOperation type = entryHeader.getOperation();
+        return new Patch(type, entryHeader.getPath().toString(), entryHeader.getBaseTypes(),
+                type.hasBaseChecksum() ? entryHeader.getBaseChecksum() : null, data,
+                entryHeader.getTargetCrc(), entryHeader.getTargetSize());
+    }
+
+    /**
+     * Reads the next entry from the bundle into the given cursor, reusing its buffers.
+     * This is an alternative to {@link #readEntry()} that does not allocate per entry.
+     *
+     * @return true if an entry was read, false if all entries have been read
+     */
+    public boolean next(PatchCursor cursor) throws IOException {
+        if (!readEntryHeader(cursor)) {
+            return false;
+        }
+
+        int dataLength = readDataLength(cursor);
+        input.readFully(cursor.dataBuffer(dataLength), 0, dataLength);
+
+        entriesRead++;
+        return true;
+    }
+
+    /**
+     * Reads the metadata of the next entry into the given cursor and skips over its data without copying it.
+     * Afterward, the cursor only provides the {@linkplain PatchCursor#getDataLength() length} of the data, so scanning
+     * an entire bundle this way uses constant memory regardless of the size of its entries.
+     *
+     * @return true if an entry was read, false if all entries have been read
+     */
+    public boolean nextMetadata(PatchCursor cursor) throws IOException {
+        if (!readEntryHeader(cursor)) {
+            return false;
+        }
+
+        int dataLength = readDataLength(cursor);
+        cursor.skipData(dataLength);
+        int remaining = dataLength;
+        while (remaining > 0) {
+            int skipped = input.skipBytes(remaining);
+            if (skipped == 0) {
+                input.readByte(); // Either makes progress or throws at the end of the stream
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+
+        entriesRead++;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            input.close();
+            closed = true;
+        }
+    }
+
+    private boolean readEntryHeader(PatchCursor cursor) throws IOException {
         if (closed) {
             throw new IllegalStateException("Reader is closed");
         }
         if (!hasMoreEntries()) {
-            return null;
+            return false;
         }
 
         // Read entry flags
         int flags = input.readUnsignedByte();
-        int entryTypeBits = flags & ENTRY_TYPE_MASK;
-        int distBitfield = flags & DISTRIBUTION_MASK;
-
-        PatchOperation type;
-        switch (entryTypeBits) {
-            case ENTRY_TYPE_CREATE:
-                type = PatchOperation.CREATE;
-                break;
-            case ENTRY_TYPE_MODIFY:
-                type = PatchOperation.MODIFY;
-                break;
-            case ENTRY_TYPE_REMOVE:
-                type = PatchOperation.REMOVE;
-                break;
-            default:
-                throw new IOException("Unknown entry type: " + entryTypeBits);
-        }
-
-        EnumSet<PatchBase> entryDists = PatchBase.fromBitfield(distBitfield);
+        PatchOperation type = PatchBundleConstants.getOperation(flags);
 
         // Validate entry distributions against bundle distributions
-        for (PatchBase dist : entryDists) {
-            if (!supportedBaseTypes.contains(dist)) {
+        for (PatchBase dist : PatchBase.values()) {
+            if ((flags & dist.mask()) != 0 && !supportedBaseTypes.contains(dist)) {
                 throw new IOException("Entry targets distribution " + dist +
                         " not declared in bundle");
             }
         }
 
         // Read target path
-        String targetPath = readString();
+        readString(cursor);
+
+        // Read base checksum if this is a modify or replace entry
+        long baseChecksum = -1;
+        if (type.hasBaseChecksum()) {
+            baseChecksum = input.readInt();
+        }
 
-        // Read base checksum if this is a modify entry
-        Long baseChecksum = null;
-        if (type == PatchOperation.MODIFY) {
-            baseChecksum = (long) input.readInt();
+        // Read the target digest if present
+        long targetCrc = -1;
+        long targetSize = -1;
+        if ((flags & ENTRY_FLAG_TARGET_DIGEST) != 0) {
+            if (type == PatchOperation.REMOVE) {
+                throw new IOException("REMOVE entry must not have a target digest");
+            }
+            targetCrc = input.readInt() & 0xFFFFFFFFL;
+            targetSize = input.readInt() & 0xFFFFFFFFL;
         }
 
-        // Read data length and data
+        cursor.setEntry(flags, type, baseChecksum, targetCrc, targetSize);
+        return true;
+    }
+
+    private int readDataLength(PatchCursor cursor) throws IOException {
         int dataLength = input.readInt();
         if (dataLength < 0) {
             throw new IOException("Invalid data length: " + dataLength);
         }
-        if (type == PatchOperation.REMOVE && dataLength != 0) {
+        if (cursor.getOperation() == PatchOperation.REMOVE && dataLength != 0) {
             throw new IOException("REMOVE entry must have data length of 0");
         }
-
-        byte[] data = new byte[dataLength];
-        if (dataLength > 0) {
-            input.readFully(data);
-        }
-
-        entriesRead++;
-        return new Patch(type, targetPath, entryDists, baseChecksum, data);
-    }
-
-    @Override
-    public void close() throws IOException {
-        if (!closed) {
-            input.close();
-            closed = true;
-        }
+        return dataLength;
     }
 
-    private String readString() throws IOException {
+    private void readString(PatchCursor cursor) throws IOException {
         int length = input.readUnsignedShort();
-        byte[] bytes = new byte[length];
-        input.readFully(bytes);
+        byte[] bytes = cursor.pathBuffer(length);
+        input.readFully(bytes, 0, length);
 
         // Validate characters
-        for (byte b : bytes) {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
             if (b < MIN_CHAR || b > MAX_CHAR) {
                 throw new IOException("String contains invalid character: 0x" +
                         Integer.toHexString(b & 0xFF));
             }
         }
-
-        return new String(bytes, StandardCharsets.US_ASCII);
     }
 
     private class EntryIterator implements Iterator<Patch> {
@@ -218,4 +335,151 @@ public class PatchBundleReader implements Iterable<Patch>, AutoCloseable {
             throw new UnsupportedOperationException("Remove not supported");
         }
     }
+
+    /**
+     * Concatenates the decompressed blocks of a V2 bundle, which contain the entries in the same format as V1 bundles.
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream input;
+        private final int propertiesByte;
+        private final int dictSize;
+        private final byte @Nullable [] dictionary;
+        @Nullable
+        private final Executor executor;
+        private final int prefetchBlocks;
+        private final ArrayDeque<DecodeTask> pending = new ArrayDeque<>();
+        private int remainingBlocks;
+        private byte[] block = new byte[0];
+        private int position;
+
+        BlockInputStream(DataInputStream input, int blockCount, int propertiesByte, int dictSize, byte @Nullable [] dictionary,
+                         @Nullable Executor executor) {
+            this.input = input;
+            this.remainingBlocks = blockCount;
+            this.propertiesByte = propertiesByte;
+            this.dictSize = dictSize;
+            this.dictionary = dictionary;
+            this.executor = executor;
+            this.prefetchBlocks = executor != null ? Math.max(2, Runtime.getRuntime().availableProcessors()) : 1;
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (position >= block.length) {
+                // Reading the compressed blocks is sequential, only the decompression is done ahead of time
+                while (pending.size() < prefetchBlocks && remainingBlocks > 0) {
+                    DecodeTask task = readBlock();
+                    pending.add(task);
+                    if (executor != null) {
+                        executor.execute(task);
+                    }
+                }
+
+                DecodeTask next = pending.poll();
+                if (next == null) {
+                    return false;
+                }
+                block = next.get();
+                position = 0;
+            }
+            return true;
+        }
+
+        private DecodeTask readBlock() throws IOException {
+            remainingBlocks--;
+
+            int uncompressedLength = input.readInt();
+            int compressedLength = input.readInt();
+            input.readInt(); // Entry count
+            if (uncompressedLength < 0 || compressedLength < 0) {
+                throw new IOException("Invalid block lengths: " + uncompressedLength + ", " + compressedLength);
+            }
+            byte[] compressed = new byte[compressedLength];
+            input.readFully(compressed);
+            return new DecodeTask(compressed, uncompressedLength);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return block[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            int n = Math.min(len, block.length - position);
+            System.arraycopy(block, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !ensureAvailable()) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, block.length - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Prevent blocks that have not been started yet from being decompressed needlessly
+            for (DecodeTask task : pending) {
+                task.claimed.set(true);
+            }
+            pending.clear();
+            input.close();
+        }
+
+        /**
+         * Decompresses a single block. Runs either on the executor or, if it has not been started by the time
+         * the block is needed, on the reading thread.
+         */
+        private final class DecodeTask implements Runnable {
+            private final byte[] compressed;
+            private final int uncompressedLength;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+            private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+            DecodeTask(byte[] compressed, int uncompressedLength) {
+                this.compressed = compressed;
+                this.uncompressedLength = uncompressedLength;
+            }
+
+            @Override
+            public void run() {
+                if (claimed.compareAndSet(false, true)) {
+                    try {
+                        result.complete(PatchBundleBlocks.decompress(compressed, uncompressedLength, propertiesByte, dictSize, dictionary));
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            }
+
+            byte[] get() throws IOException {
+                run();
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while decompressing patch bundle block");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Failed to decompress patch bundle block", e.getCause());
+                }
+            }
+        }
+    }
 }
@@ -1,15 +1,24 @@
 package net.neoforged.binarypatcher;
 
+import org.jspecify.annotations.Nullable;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.LZMAOutputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import static net.neoforged.binarypatcher.PatchBundleConstants.*;
 
@@ -19,21 +28,74 @@ import static net.neoforged.binarypatcher.PatchBundleConstants.*;
  * 1. Create writer with output stream and target distributions
  * 2. Write entries using writeCreateEntry, writeModifyEntry, or writeRemoveEntry
  * 3. Call finish() to finalize the bundle
+ * <p>
+ * If the number of entries is known upfront, use {@link #PatchBundleWriter(OutputStream, Set, int)} to stream
+ * entries into the compressor as they are written, instead of buffering the uncompressed bundle until it is closed.
+ * <p>
+ * Bundles in the {@link PatchBundleFormat#V2} format are written in independently compressed blocks, which are
+ * compressed as soon as they are full. Only the compressed blocks are kept until the bundle is closed.
  */
 public class PatchBundleWriter implements AutoCloseable {
+    private static final int HEADER_SIZE = BUNDLE_SIGNATURE.length + 5;
+
     private final OutputStream output;
     private final EnumSet<PatchBase> bundleDistributions;
-    private final ByteArrayOutputStream entryBuffer;
+    @Nullable
+    private final BundleBuffer bundleBuffer; // null if entries are streamed into the compressor
+    @Nullable
+    private final BlockWriter blockWriter; // only used for V2 bundles
+    private final DataOutputStream entryOutput;
+    private final int expectedEntryCount; // -1 if unknown
     private int entryCount;
     private boolean closed;
     
     public PatchBundleWriter(OutputStream output, Set<PatchBase> bundleDistributions) {
+        this(output, bundleDistributions, new PatchBundleOptions());
+    }
+
+    public PatchBundleWriter(OutputStream output, Set<PatchBase> bundleDistributions, PatchBundleOptions options) {
+        if (bundleDistributions.isEmpty()) {
+            throw new IllegalArgumentException("Bundle must target at least one distribution");
+        }
+        this.output = output;
+        this.bundleDistributions = EnumSet.copyOf(bundleDistributions);
+        this.expectedEntryCount = -1;
+        if (options.getFormat() == PatchBundleFormat.V2) {
+            this.bundleBuffer = null;
+            this.blockWriter = new BlockWriter(options);
+            this.entryOutput = new DataOutputStream(blockWriter);
+        } else {
+            // Reserve space for the header, which is filled in once the entry count is known
+            this.bundleBuffer = new BundleBuffer();
+            this.bundleBuffer.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+            this.blockWriter = null;
+            this.entryOutput = new DataOutputStream(bundleBuffer);
+        }
+    }
+
+    /**
+     * Creates a writer that compresses entries as they are written. Since the entry count is part of the bundle
+     * header, exactly {@code entryCount} entries must be written before the writer is closed.
+     */
+    public PatchBundleWriter(OutputStream output, Set<PatchBase> bundleDistributions, int entryCount) throws IOException {
         if (bundleDistributions.isEmpty()) {
             throw new IllegalArgumentException("Bundle must target at least one distribution");
         }
+        if (entryCount < 0) {
+            throw new IllegalArgumentException("Entry count must not be negative: " + entryCount);
+        }
         this.output = output;
         this.bundleDistributions = EnumSet.copyOf(bundleDistributions);
-        this.entryBuffer = new ByteArrayOutputStream();
+        this.expectedEntryCount = entryCount;
+        this.bundleBuffer = null;
+        this.blockWriter = null;
+        // The uncompressed size is unknown, so the stream is terminated by an end marker
+        LZMAOutputStream lzmaOutput = new LZMAOutputStream(output, new LZMA2Options(), -1);
+        this.entryOutput = new DataOutputStream(new BufferedOutputStream(lzmaOutput, 65536));
+
+        entryOutput.write(BUNDLE_SIGNATURE);
+        entryOutput.writeInt(entryCount);
+        entryOutput.writeByte(PatchBase.toBitfield(this.bundleDistributions));
     }
     
     /**
@@ -43,7 +105,7 @@ public class PatchBundleWriter implements AutoCloseable {
                                   EnumSet<PatchBase> entryDistributions) throws IOException {
         validateEntry(entryDistributions, targetPath);
         int flags = ENTRY_TYPE_CREATE | PatchBase.toBitfield(entryDistributions);
-        writeEntryInternal(flags, targetPath, 0, fileContent);
+        writeEntryInternal(flags, targetPath, 0, -1, -1, fileContent);
     }
     
     /**
@@ -56,9 +118,22 @@ public class PatchBundleWriter implements AutoCloseable {
             throw new IllegalArgumentException("Base checksum must be a valid 32-bit unsigned value");
         }
         int flags = ENTRY_TYPE_MODIFY | PatchBase.toBitfield(entryDistributions);
-        writeEntryInternal(flags, targetPath, baseChecksum, patchData);
+        writeEntryInternal(flags, targetPath, baseChecksum, -1, -1, patchData);
     }
     
+    /**
+     * Write an entry that replaces an existing file with the given content.
+     */
+    public void writeReplaceEntry(String targetPath, long baseChecksum, byte[] fileContent,
+                                  EnumSet<PatchBase> entryDistributions) throws IOException {
+        validateEntry(entryDistributions, targetPath);
+        if (baseChecksum < 0 || baseChecksum > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Base checksum must be a valid 32-bit unsigned value");
+        }
+        int flags = ENTRY_TYPE_REPLACE | PatchBase.toBitfield(entryDistributions);
+        writeEntryInternal(flags, targetPath, baseChecksum, -1, -1, fileContent);
+    }
+
     /**
      * Write an entry that removes a file.
      */
@@ -66,11 +141,25 @@ public class PatchBundleWriter implements AutoCloseable {
             throws IOException {
         validateEntry(entryDistributions, targetPath);
         int flags = ENTRY_TYPE_REMOVE | PatchBase.toBitfield(entryDistributions);
-        writeEntryInternal(flags, targetPath, 0, new byte[0]);
+        writeEntryInternal(flags, targetPath, 0, -1, -1, new byte[0]);
     }
 
 
+    /**
+     * Writes the entry, including its target digest if it has one.
+     */
     public void write(Patch patch) throws IOException {
+        if (patch.hasTargetDigest()) {
+            if (patch.getOperation() == PatchOperation.REMOVE) {
+                throw new IllegalArgumentException("REMOVE entry '" + patch.getTargetPath() + "' cannot have a target digest");
+            }
+            validateEntry(patch.getBaseTypes(), patch.getTargetPath());
+            int flags = getEntryType(patch.getOperation()) | ENTRY_FLAG_TARGET_DIGEST | PatchBase.toBitfield(patch.getBaseTypes());
+            long baseChecksum = patch.getOperation().hasBaseChecksum() ? patch.getBaseChecksumUnsigned() : 0;
+            writeEntryInternal(flags, patch.getTargetPath(), baseChecksum, patch.getTargetCrc(), patch.getTargetSize(), patch.getData());
+            return;
+        }
+
         switch (patch.getOperation()) {
             case CREATE:
                 writeCreateEntry(patch.getTargetPath(), patch.getData(), patch.getBaseTypes());
@@ -81,31 +170,44 @@ public class PatchBundleWriter implements AutoCloseable {
             case REMOVE:
                 writeRemoveEntry(patch.getTargetPath(), patch.getBaseTypes());
                 break;
+            case REPLACE:
+                writeReplaceEntry(patch.getTargetPath(), patch.getBaseChecksumUnsigned(), patch.getData(), patch.getBaseTypes());
+                break;
         }
     }
 
     @Override
     public void close() throws IOException {
         if (!closed) {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            closed = true;
+
+            if (blockWriter != null) {
+                try (DataOutputStream bundleOutput = new DataOutputStream(output)) {
+                    blockWriter.finish(bundleOutput, entryCount, PatchBase.toBitfield(bundleDistributions));
+                }
+                return;
+            }
 
-            // Write header
-            DataOutputStream dos = new DataOutputStream(buffer);
-            dos.write(BUNDLE_SIGNATURE);
-            dos.writeInt(entryCount);
-            dos.writeByte(PatchBase.toBitfield(bundleDistributions));
+            if (bundleBuffer == null) {
+                entryOutput.close();
+                if (entryCount != expectedEntryCount) {
+                    throw new IllegalStateException("Bundle was declared with " + expectedEntryCount
+                            + " entries, but " + entryCount + " were written");
+                }
+                return;
+            }
 
-            // Write all buffered entries
-            entryBuffer.writeTo(buffer);
+            // Fill in the header reserved at the start of the buffer
+            bundleBuffer.put(0, BUNDLE_SIGNATURE);
+            bundleBuffer.putInt(BUNDLE_SIGNATURE.length, entryCount);
+            bundleBuffer.put(BUNDLE_SIGNATURE.length + 4, (byte) PatchBase.toBitfield(bundleDistributions));
 
             LZMA2Options options = new LZMA2Options();
-            try (LZMAOutputStream lzmaOutput = new LZMAOutputStream(output, options, buffer.size())) {
-                lzmaOutput.write(buffer.toByteArray());
+            try (LZMAOutputStream lzmaOutput = new LZMAOutputStream(output, options, bundleBuffer.size())) {
+                bundleBuffer.writeTo(lzmaOutput);
             }
 
             output.close();
-
-            closed = true;
         }
     }
     
@@ -125,11 +227,14 @@ public class PatchBundleWriter implements AutoCloseable {
         }
     }
     
-    private void writeEntryInternal(int flags, String targetPath, long baseChecksum, byte[] data) 
-            throws IOException {
+    private void writeEntryInternal(int flags, String targetPath, long baseChecksum, long targetCrc, long targetSize,
+                                    byte[] data) throws IOException {
         validatePath(targetPath);
+        if (expectedEntryCount != -1 && entryCount >= expectedEntryCount) {
+            throw new IllegalStateException("Bundle was declared with " + expectedEntryCount + " entries");
+        }
         
-        DataOutputStream dos = new DataOutputStream(entryBuffer);
+        DataOutputStream dos = entryOutput;
         
         // Write entry flags
         dos.writeByte(flags);
@@ -137,19 +242,31 @@ public class PatchBundleWriter implements AutoCloseable {
         // Write target path
         writeString(dos, targetPath);
         
-        // Write base checksum if this is a modify entry
-        if ((flags & ENTRY_TYPE_MASK) == ENTRY_TYPE_MODIFY) {
+        // Write base checksum if this is a modify or replace entry
+        if (hasBaseChecksum(flags)) {
             dos.writeInt((int) baseChecksum);
         }
+
+        // Write the target digest if present
+        if ((flags & ENTRY_FLAG_TARGET_DIGEST) != 0) {
+            dos.writeInt((int) targetCrc);
+            dos.writeInt((int) targetSize);
+        }
         
         // Write data length and data
         dos.writeInt(data.length);
+        if (blockWriter != null) {
+            blockWriter.addIndexEntry(flags, targetPath, baseChecksum, targetCrc, targetSize, data.length);
+        }
         dos.write(data);
         
         entryCount++;
+        if (blockWriter != null) {
+            blockWriter.endEntry();
+        }
     }
     
-    private void writeString(DataOutputStream dos, String str) throws IOException {
+    private static void writeString(DataOutputStream dos, String str) throws IOException {
         byte[] bytes = str.getBytes(StandardCharsets.US_ASCII);
         
         // Validate string
@@ -189,4 +306,202 @@ public class PatchBundleWriter implements AutoCloseable {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Buffer for the uncompressed bundle that allows filling in the header after the entries have been written,
+     * and hands its contents to the compressor without copying them.
+     */
+    private static final class BundleBuffer extends ByteArrayOutputStream {
+        BundleBuffer() {
+            super(65536);
+        }
+
+        void put(int offset, byte[] data) {
+            System.arraycopy(data, 0, buf, offset, data.length);
+        }
+
+        void put(int offset, byte value) {
+            buf[offset] = value;
+        }
+
+        void putInt(int offset, int value) {
+            buf[offset] = (byte) (value >>> 24);
+            buf[offset + 1] = (byte) (value >>> 16);
+            buf[offset + 2] = (byte) (value >>> 8);
+            buf[offset + 3] = (byte) value;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Splits the entries of a V2 bundle into blocks, compresses each block once it is full, and records the index.
+     * Entries are written to this stream and always end up in the current block.
+     */
+    private static final class BlockWriter extends OutputStream {
+        private final LZMA2Options lzmaOptions = new LZMA2Options();
+        private final int blockSize;
+        @Nullable
+        private final Executor compressionExecutor;
+        private final int dictionarySize;
+        // Blocks are only compressed in finish if a dictionary has to be trained from them first
+        private final List<BundleBuffer> uncompressedBlocks = new ArrayList<>();
+        private final List<CompletableFuture<byte[]>> compressedBlocks = new ArrayList<>();
+        private final List<Integer> blockSizes = new ArrayList<>();
+        private final List<Integer> blockEntryCounts = new ArrayList<>();
+        private final ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+        private final DataOutputStream indexOutput = new DataOutputStream(indexEntries);
+        private BundleBuffer currentBlock = new BundleBuffer();
+        private int currentBlockEntries;
+
+        BlockWriter(PatchBundleOptions options) {
+            this.blockSize = options.getBlockSize();
+            this.compressionExecutor = options.getCompressionExecutor();
+            this.dictionarySize = options.getDictionarySize();
+        }
+
+        @Override
+        public void write(int b) {
+            currentBlock.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            currentBlock.write(b, off, len);
+        }
+
+        /**
+         * Records the index entry for the entry currently being written. Must be called right before its data is
+         * written.
+         */
+        void addIndexEntry(int flags, String targetPath, long baseChecksum, long targetCrc, long targetSize,
+                           int dataLength) throws IOException {
+            indexOutput.writeByte(flags);
+            writeString(indexOutput, targetPath);
+            if (hasBaseChecksum(flags)) {
+                indexOutput.writeInt((int) baseChecksum);
+            }
+            if ((flags & ENTRY_FLAG_TARGET_DIGEST) != 0) {
+                indexOutput.writeInt((int) targetCrc);
+                indexOutput.writeInt((int) targetSize);
+            }
+            indexOutput.writeInt(blockSizes.size());
+            indexOutput.writeInt(currentBlock.size());
+            indexOutput.writeInt(dataLength);
+        }
+
+        void endEntry() {
+            currentBlockEntries++;
+            if (currentBlock.size() >= blockSize) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() {
+            if (currentBlockEntries == 0) {
+                return;
+            }
+
+            BundleBuffer block = currentBlock;
+            if (dictionarySize > 0) {
+                uncompressedBlocks.add(block);
+            } else {
+                startCompression(block);
+            }
+            blockSizes.add(block.size());
+            blockEntryCounts.add(currentBlockEntries);
+
+            currentBlock = new BundleBuffer();
+            currentBlockEntries = 0;
+        }
+
+        private void startCompression(BundleBuffer block) {
+            if (compressionExecutor != null) {
+                compressedBlocks.add(CompletableFuture.supplyAsync(() -> compress(block), compressionExecutor));
+            } else {
+                compressedBlocks.add(CompletableFuture.completedFuture(compress(block)));
+            }
+        }
+
+        private byte[] compress(BundleBuffer block) {
+            try {
+                return PatchBundleBlocks.compress(block.buffer(), block.size(), lzmaOptions);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to compress patch bundle block", e);
+            }
+        }
+
+        void finish(DataOutputStream out, int entryCount, int baseTypes) throws IOException {
+            flushBlock();
+
+            byte @Nullable [] dictionary = null;
+            if (dictionarySize > 0) {
+                List<ByteBuffer> blockData = new ArrayList<>(uncompressedBlocks.size());
+                for (BundleBuffer block : uncompressedBlocks) {
+                    blockData.add(ByteBuffer.wrap(block.buffer(), 0, block.size()));
+                }
+                dictionary = PatchBundleDictionary.train(blockData, dictionarySize);
+                if (dictionary.length == 0) {
+                    dictionary = null; // Nothing worth sharing
+                } else {
+                    lzmaOptions.setPresetDict(dictionary);
+                }
+                for (BundleBuffer block : uncompressedBlocks) {
+                    startCompression(block);
+                }
+                uncompressedBlocks.clear();
+            }
+
+            List<byte[]> blocks = new ArrayList<>(compressedBlocks.size());
+            for (CompletableFuture<byte[]> compressedBlock : compressedBlocks) {
+                try {
+                    blocks.add(compressedBlock.join());
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            // The index starts with the block table, followed by the entries
+            ByteArrayOutputStream blockTableBuffer = new ByteArrayOutputStream(blocks.size() * 16);
+            DataOutputStream blockTable = new DataOutputStream(blockTableBuffer);
+            long offset = V2_HEADER_SIZE + (dictionary != null ? 4 + dictionary.length : 0);
+            for (int i = 0; i < blocks.size(); i++) {
+                offset += V2_BLOCK_HEADER_SIZE;
+                blockTable.writeLong(offset);
+                blockTable.writeInt(blocks.get(i).length);
+                blockTable.writeInt(blockSizes.get(i));
+                offset += blocks.get(i).length;
+            }
+            long indexOffset = offset;
+            int indexLength = blockTableBuffer.size() + indexEntries.size();
+
+            out.write(BUNDLE_SIGNATURE_V2);
+            out.writeByte(dictionary != null ? V2_FLAG_DICTIONARY : 0); // Bundle flags
+            out.writeByte(baseTypes);
+            out.writeInt(entryCount);
+            out.writeInt(blocks.size());
+            out.writeByte(PatchBundleBlocks.getPropertiesByte(lzmaOptions));
+            out.writeInt(lzmaOptions.getDictSize());
+            out.writeLong(indexOffset);
+            out.writeInt(indexLength);
+            if (dictionary != null) {
+                out.writeInt(dictionary.length);
+                out.write(dictionary);
+            }
+
+            for (int i = 0; i < blocks.size(); i++) {
+                out.writeInt(blockSizes.get(i));
+                out.writeInt(blocks.get(i).length);
+                out.writeInt(blockEntryCounts.get(i));
+                out.write(blocks.get(i));
+            }
+
+            blockTableBuffer.writeTo(out);
+            indexEntries.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package net.neoforged.binarypatcher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static net.neoforged.binarypatcher.PatchBundleConstants.DISTRIBUTION_MASK;
+
+/**
+ * A reusable view of the current entry of a {@link PatchBundleReader}, filled by {@link PatchBundleReader#next(PatchCursor)}.
+ * <p>
+ * The path and data buffers are reused for every entry, so reading a bundle through a cursor does not allocate
+ * per entry once the buffers have grown to the largest entry. The values returned by {@link #getPath()} and
+ * {@link #getData()} are only valid until the cursor is advanced. Use {@link #toPatch()} to keep an entry around.
+ * When filled by {@link PatchBundleReader#nextMetadata(PatchCursor)}, the data is not available, only its length.
+ */
+public final class PatchCursor {
+    private int flags;
+    private PatchOperation operation = PatchOperation.CREATE;
+    private long baseChecksum = -1;
+    private long targetCrc = -1;
+    private long targetSize = -1;
+    private byte[] pathBytes = new byte[256];
+    private int pathLength;
+    private final Path path = new Path();
+    private byte[] dataBytes = new byte[0];
+    private ByteBuffer data = ByteBuffer.wrap(dataBytes);
+    private int dataLength;
+
+    /**
+     * Returns the raw entry flags as stored in the bundle.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    public PatchOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Returns true if the current entry applies to the given base type.
+     */
+    public boolean appliesTo(PatchBase baseType) {
+        return (flags & baseType.mask()) != 0;
+    }
+
+    /**
+     * Returns the base types of the current entry. Unlike the other accessors, this allocates a new set.
+     */
+    public EnumSet<PatchBase> getBaseTypes() {
+        return PatchBase.fromBitfield(flags & DISTRIBUTION_MASK);
+    }
+
+    /**
+     * @see Patch#getBaseChecksum()
+     */
+    public long getBaseChecksum() {
+        return baseChecksum;
+    }
+
+    /**
+     * @see Patch#getBaseChecksumUnsigned()
+     */
+    public long getBaseChecksumUnsigned() {
+        if (!operation.hasBaseChecksum()) {
+            throw new IllegalStateException("Base checksum not available for " + operation + " entries");
+        }
+        return baseChecksum & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @see Patch#hasTargetDigest()
+     */
+    public boolean hasTargetDigest() {
+        return targetCrc != -1;
+    }
+
+    /**
+     * @see Patch#getTargetCrc()
+     */
+    public long getTargetCrc() {
+        return targetCrc;
+    }
+
+    /**
+     * @see Patch#getTargetSize()
+     */
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Returns the target path of the current entry. The returned sequence changes when the cursor is advanced,
+     * call {@link Object#toString()} on it to obtain a stable copy.
+     */
+    public CharSequence getPath() {
+        return path;
+    }
+
+    /**
+     * Returns a view of the data of the current entry, positioned at its start and limited to its length.
+     * The buffer is backed by an array and is overwritten when the cursor is advanced.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Returns the length of the data of the current entry, which is also available if the data itself was skipped.
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Copies the current entry into a standalone {@link Patch}.
+     */
+    public Patch toPatch() {
+        if (data.limit() != dataLength) {
+            throw new IllegalStateException("The data of the current entry was skipped");
+        }
+        byte[] dataCopy = Arrays.copyOfRange(dataBytes, 0, data.limit());
+        return new Patch(operation, path.toString(), getBaseTypes(),
+                operation.hasBaseChecksum() ? baseChecksum : null, dataCopy, targetCrc, targetSize);
+    }
+
+    void setEntry(int flags, PatchOperation operation, long baseChecksum, long targetCrc, long targetSize) {
+        this.flags = flags;
+        this.operation = operation;
+        this.baseChecksum = baseChecksum;
+        this.targetCrc = targetCrc;
+        this.targetSize = targetSize;
+    }
+
+    byte[] pathBuffer(int length) {
+        if (pathBytes.length < length) {
+            pathBytes = new byte[Math.max(length, pathBytes.length * 2)];
+        }
+        pathLength = length;
+        return pathBytes;
+    }
+
+    byte[] dataBuffer(int length) {
+        if (dataBytes.length < length) {
+            dataBytes = new byte[Math.max(length, dataBytes.length + (dataBytes.length >> 1))];
+            data = ByteBuffer.wrap(dataBytes);
+        }
+        data.clear();
+        data.limit(length);
+        dataLength = length;
+        return dataBytes;
+    }
+
+    void skipData(int length) {
+        data.clear();
+        data.limit(0);
+        dataLength = length;
+    }
+
+    /**
+     * Exposes the ASCII bytes of the path buffer as characters.
+     */
+    private final class Path implements CharSequence {
+        @Override
+        public int length() {
+            return pathLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= pathLength) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + pathLength);
+            }
+            return (char) pathBytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(pathBytes, 0, pathLength, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -6,5 +6,17 @@ package net.neoforged.binarypatcher;
 public enum PatchOperation {
     CREATE,
     MODIFY,
-    REMOVE
+    REMOVE,
+    /**
+     * Replaces an existing file with the raw content stored in the entry. Like {@link #MODIFY}, it carries the
+     * checksum of the base file it expects, but applying it does not require computing a delta.
+     */
+    REPLACE;
+
+    /**
+     * Returns true if entries of this type carry the checksum of the base file they expect.
+     */
+    public boolean hasBaseChecksum() {
+        return this == MODIFY || this == REPLACE;
+    }
 }
@@ -0,0 +1,90 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+
+public final class PatchOptions {
+    /**
+     * Number of worker threads that read base entries, verify their checksums and apply MODIFY patches while
+     * the bundle is being decoded. With a parallelism of 1, patches are applied on the calling thread.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Update an existing output file instead of writing a new one. If the output does not exist yet, the base file is
+     * copied first. Entries of the output that already have the expected content are kept where they are, changed
+     * entries are appended and only the central directory is rewritten. Entries that no longer match are thus left
+     * behind as unreferenced data, so the output is fully rewritten once too much of it is unreferenced.
+     * <p>
+     * The new central directory is appended after the old one, so a failed update leaves the previous output intact.
+     * An update that is interrupted outright (e.g. the process is killed) can leave a partially appended central
+     * directory behind, which makes the output unusable until the next run detects it and rewrites the output.
+     */
+    private boolean inPlace;
+
+    /**
+     * When patching in-place, trust that entries of the existing output are correct if their CRC32 and size match
+     * the target digest of their patch. Such patches are only applied if their result is needed otherwise,
+     * which makes repeated runs against an up-to-date output skip most of the patching.
+     */
+    private boolean trustOutput;
+
+    /**
+     * Maximum number of bytes of patched and created entry content to keep on the heap while the patch bundles are
+     * applied. Content beyond this budget is spilled to a temporary file. Unlimited by default.
+     */
+    private long memoryBudget = Long.MAX_VALUE;
+
+    /**
+     * Directory for the temporary spill file, or null to use the default temporary directory.
+     */
+    @Nullable
+    private File spillDirectory;
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    public void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    public boolean isTrustOutput() {
+        return trustOutput;
+    }
+
+    public void setTrustOutput(boolean trustOutput) {
+        this.trustOutput = trustOutput;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public @Nullable File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(@Nullable File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+}
@@ -0,0 +1,257 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks whether a base file matches a chain of patch bundles, without applying them.
+ * <p>
+ * Only entries that refer to content of the base are checked: the first MODIFY, REPLACE or REMOVE of every path.
+ * Later entries for the same path refer to the result of an earlier entry, which is not checked here.
+ * The existence of targets is looked up in the central directory of the base, and the base checksums are
+ * computed in parallel. Indexed bundles are checked using their index only, so no bundle data is decompressed.
+ */
+public final class PatchVerifier {
+    private PatchVerifier() {
+    }
+
+    public static List<Mismatch> verify(File baseFile, PatchBase baseType, List<File> patchBundleFiles) throws IOException {
+        return verify(baseFile, baseType, patchBundleFiles, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return All entries of the bundles that do not match the base, in bundle order. Empty if the base matches.
+     */
+    public static List<Mismatch> verify(File baseFile, PatchBase baseType, List<File> patchBundleFiles, int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+
+        ExecutorService workers = null;
+        if (parallelism > 1) {
+            workers = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r);
+                t.setName("BinaryPatcherVerifier");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        try (ZipFile baseZip = new ZipFile(baseFile)) {
+            List<PendingCheck> checks = new ArrayList<>();
+            Set<String> touchedPaths = new HashSet<>();
+            for (File patchBundleFile : patchBundleFiles) {
+                if (IndexedPatchBundle.isIndexedPatchBundle(patchBundleFile)) {
+                    try (IndexedPatchBundle patchBundle = new IndexedPatchBundle(patchBundleFile)) {
+                        checkSupported(patchBundleFile, patchBundle.getSupportedBaseTypes().contains(baseType), baseType);
+                        for (IndexedPatchBundle.Entry entry : patchBundle.getEntries()) {
+                            if (entry.getBaseTypes().contains(baseType) && touchedPaths.add(entry.getTargetPath())) {
+                                addCheck(checks, baseZip, patchBundleFile, entry.getTargetPath(), entry.getOperation(),
+                                        entry.getBaseChecksum() & 0xFFFFFFFFL, workers);
+                            }
+                        }
+                    }
+                } else {
+                    try (PatchBundleReader patchBundle = new PatchBundleReader(patchBundleFile)) {
+                        checkSupported(patchBundleFile, patchBundle.getSupportedBaseTypes().contains(baseType), baseType);
+                        PatchCursor cursor = new PatchCursor();
+                        while (patchBundle.next(cursor)) {
+                            if (!cursor.appliesTo(baseType)) {
+                                continue;
+                            }
+                            String targetPath = cursor.getPath().toString();
+                            if (touchedPaths.add(targetPath)) {
+                                addCheck(checks, baseZip, patchBundleFile, targetPath, cursor.getOperation(),
+                                        cursor.getBaseChecksum() & 0xFFFFFFFFL, workers);
+                            }
+                        }
+                    }
+                }
+            }
+
+            List<Mismatch> mismatches = new ArrayList<>();
+            for (PendingCheck check : checks) {
+                Mismatch mismatch = check.join();
+                if (mismatch != null) {
+                    mismatches.add(mismatch);
+                }
+            }
+            return mismatches;
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    private static void checkSupported(File patchBundleFile, boolean supported, PatchBase baseType) {
+        if (!supported) {
+            throw new IllegalArgumentException("Cannot verify patch bundle " + patchBundleFile + " against base type " + baseType
+                    + " because it does not support it");
+        }
+    }
+
+    private static void addCheck(List<PendingCheck> checks, ZipFile baseZip, File patchBundleFile, String targetPath,
+                                 PatchOperation operation, long expectedChecksum, @Nullable ExecutorService workers) throws IOException {
+        if (operation == PatchOperation.CREATE) {
+            return; // Created entries replace whatever is in the base
+        }
+
+        ZipEntry entry = baseZip.getEntry(targetPath);
+        if (entry == null || entry.isDirectory()) {
+            Mismatch missing = new Mismatch(patchBundleFile, targetPath, operation, MismatchReason.MISSING, -1, -1);
+            checks.add(new PendingCheck(CompletableFuture.completedFuture(missing)));
+            return;
+        }
+        if (!operation.hasBaseChecksum()) {
+            return;
+        }
+
+        if (workers == null) {
+            checks.add(new PendingCheck(CompletableFuture.completedFuture(
+                    checkChecksum(baseZip, entry, patchBundleFile, operation, expectedChecksum))));
+            return;
+        }
+        checks.add(new PendingCheck(CompletableFuture.supplyAsync(() -> {
+            try {
+                return checkChecksum(baseZip, entry, patchBundleFile, operation, expectedChecksum);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, workers)));
+    }
+
+    private static @Nullable Mismatch checkChecksum(ZipFile baseZip, ZipEntry entry, File patchBundleFile,
+                                                    PatchOperation operation, long expectedChecksum) throws IOException {
+        // Same checksum as Patch#checksum, but without reading the whole entry into memory
+        Adler32 hasher = new Adler32();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = baseZip.getInputStream(entry)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hasher.update(buffer, 0, read);
+            }
+        }
+        long checksum = hasher.getValue();
+        if (checksum == expectedChecksum) {
+            return null;
+        }
+        return new Mismatch(patchBundleFile, entry.getName(), operation, MismatchReason.CHECKSUM,
+                expectedChecksum, checksum);
+    }
+
+    private static final class PendingCheck {
+        private final CompletableFuture<@Nullable Mismatch> result;
+
+        PendingCheck(CompletableFuture<@Nullable Mismatch> result) {
+            this.result = result;
+        }
+
+        @Nullable Mismatch join() throws IOException {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("Failed to verify base entry", cause);
+            }
+        }
+    }
+
+    public enum MismatchReason {
+        /**
+         * The entry targeted by a MODIFY, REPLACE or REMOVE does not exist in the base.
+         */
+        MISSING,
+        /**
+         * The entry targeted by a MODIFY or REPLACE does not have the expected base checksum.
+         */
+        CHECKSUM
+    }
+
+    /**
+     * An entry of a patch bundle that cannot be applied to the base.
+     */
+    public static final class Mismatch {
+        private final File patchBundleFile;
+        private final String targetPath;
+        private final PatchOperation operation;
+        private final MismatchReason reason;
+        private final long expectedChecksum;
+        private final long actualChecksum;
+
+        Mismatch(File patchBundleFile, String targetPath, PatchOperation operation, MismatchReason reason,
+                 long expectedChecksum, long actualChecksum) {
+            this.patchBundleFile = patchBundleFile;
+            this.targetPath = targetPath;
+            this.operation = operation;
+            this.reason = reason;
+            this.expectedChecksum = expectedChecksum;
+            this.actualChecksum = actualChecksum;
+        }
+
+        public File getPatchBundleFile() {
+            return patchBundleFile;
+        }
+
+        public String getTargetPath() {
+            return targetPath;
+        }
+
+        public PatchOperation getOperation() {
+            return operation;
+        }
+
+        public MismatchReason getReason() {
+            return reason;
+        }
+
+        /**
+         * The base checksum expected by the patch, or -1 if the reason is not {@link MismatchReason#CHECKSUM}.
+         */
+        public long getExpectedChecksum() {
+            return expectedChecksum;
+        }
+
+        /**
+         * The actual checksum of the base entry, or -1 if the reason is not {@link MismatchReason#CHECKSUM}.
+         */
+        public long getActualChecksum() {
+            return actualChecksum;
+        }
+
+        @Override
+        public String toString() {
+            switch (reason) {
+                case MISSING:
+                    return operation + " " + targetPath + " in " + patchBundleFile.getName() + ": missing from base";
+                case CHECKSUM:
+                    return operation + " " + targetPath + " in " + patchBundleFile.getName() + ": expected checksum "
+                            + Long.toHexString(expectedChecksum) + " but was " + Long.toHexString(actualChecksum);
+                default:
+                    throw new IllegalStateException("Unknown mismatch reason: " + reason);
+            }
+        }
+    }
+}
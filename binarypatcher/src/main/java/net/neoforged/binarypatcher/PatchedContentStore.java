@@ -0,0 +1,208 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the content of all entries that were created, modified or deleted by the applied patch bundles.
+ * <p>
+ * Content is kept on the heap until the memory budget is exhausted. After that, new content is appended to a
+ * temporary spill file and only its offset and length are kept on the heap. Deleted entries are represented
+ * by {@link Patcher#DELETION_MARKER}. Content can also be deferred, in which case it is only computed if it is
+ * actually loaded.
+ * <p>
+ * Only a single thread may modify the store, but the {@link Content} of an entry can be loaded from any thread.
+ */
+final class PatchedContentStore implements Closeable {
+    private final long memoryBudget;
+    @Nullable
+    private final File spillDirectory;
+    private final Map<String, Content> contents = new HashMap<>();
+    private long memoryUsed;
+    @Nullable
+    private Path spillPath;
+    @Nullable
+    private FileChannel spillChannel;
+    private long spillSize;
+
+    PatchedContentStore(long memoryBudget, @Nullable File spillDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns the paths of all entries in the store.
+     */
+    Set<String> paths() {
+        return Collections.unmodifiableSet(contents.keySet());
+    }
+
+    /**
+     * Returns the content of an entry without loading it, or null if the entry is not in the store.
+     */
+    @Nullable Content getContent(String path) {
+        return contents.get(path);
+    }
+
+    /**
+     * Removes an entry from the store and returns its content, or null if the entry was not in the store.
+     * The returned content can still be loaded until the store is closed.
+     */
+    @Nullable Content remove(String path) {
+        Content content = contents.remove(path);
+        if (content != null) {
+            release(content);
+        }
+        return content;
+    }
+
+    void put(String path, byte[] data) throws IOException {
+        Content content;
+        if (data == Patcher.DELETION_MARKER || memoryUsed + data.length <= memoryBudget) {
+            content = new Content(data, -1, data.length, null, -1);
+            memoryUsed += data.length;
+        } else {
+            content = new Content(null, spill(data), data.length, null, -1);
+        }
+        replace(path, content);
+    }
+
+    /**
+     * Puts content whose CRC32 and size are known upfront, but which is only computed by the given task
+     * when it is loaded. The task is run again every time the content is loaded.
+     */
+    void putDeferred(String path, long crc, int length, Patcher.PatchTask task) {
+        replace(path, new Content(null, -1, length, task, crc));
+    }
+
+    private void replace(String path, Content content) {
+        Content previous = contents.put(path, content);
+        if (previous != null) {
+            // Spilled data of replaced entries is not reclaimed, the spill file only grows
+            release(previous);
+        }
+    }
+
+    /**
+     * Returns the number of bytes that have been written to the spill file.
+     */
+    long getSpilledBytes() {
+        return spillSize;
+    }
+
+    private void release(Content content) {
+        if (content.data != null) {
+            memoryUsed -= content.data.length;
+        }
+    }
+
+    private long spill(byte[] data) throws IOException {
+        FileChannel channel = spillChannel;
+        if (channel == null) {
+            Path directory = spillDirectory != null ? spillDirectory.toPath() : null;
+            spillPath = directory != null
+                    ? Files.createTempFile(directory, "binarypatcher", ".spill")
+                    : Files.createTempFile("binarypatcher", ".spill");
+            spillChannel = channel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        long offset = spillSize;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        spillSize = position;
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        contents.clear();
+        memoryUsed = 0;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } finally {
+                // DELETE_ON_CLOSE is only best-effort on some platforms
+                Files.deleteIfExists(spillPath);
+                spillChannel = null;
+                spillPath = null;
+            }
+        }
+    }
+
+    /**
+     * The content of an entry, either held on the heap or located in the spill file.
+     */
+    final class Content {
+        private final byte @Nullable [] data;
+        private final long spillOffset;
+        private final int length;
+        private final Patcher.@Nullable PatchTask deferred;
+        private final long crc;
+
+        private Content(byte @Nullable [] data, long spillOffset, int length, Patcher.@Nullable PatchTask deferred, long crc) {
+            this.data = data;
+            this.spillOffset = spillOffset;
+            this.length = length;
+            this.deferred = deferred;
+            this.crc = crc;
+        }
+
+        boolean isDeletion() {
+            return data == Patcher.DELETION_MARKER;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * Returns the unsigned CRC32 of the content if it is known without loading it, or -1 otherwise.
+         */
+        long crc() {
+            return crc;
+        }
+
+        /**
+         * Returns the content, reading it from the spill file if necessary. Safe to call from any thread.
+         */
+        byte[] load() throws IOException {
+            if (data != null) {
+                return data;
+            }
+            if (deferred != null) {
+                return deferred.apply();
+            }
+
+            FileChannel channel = spillChannel;
+            if (channel == null) {
+                throw new IOException("Patched content store has been closed");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            long position = spillOffset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of spill file");
+                }
+                position += read;
+            }
+            return buffer.array();
+        }
+    }
+}
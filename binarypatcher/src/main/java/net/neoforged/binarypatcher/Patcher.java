@@ -4,7 +4,7 @@
  */
 package net.neoforged.binarypatcher;
 
-import com.nothome.delta.GDiffPatcher;
+import org.jspecify.annotations.Nullable;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -14,14 +14,31 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -34,13 +51,21 @@ public class Patcher {
     }
 
     public static void patch(File baseFile, PatchBase baseType, String inputName, InputStream input, File outputFile, Consumer<String> debugOutput) {
+        patch(baseFile, baseType, inputName, input, outputFile, new PatchOptions(), debugOutput);
+    }
+
+    public static void patch(File baseFile, PatchBase baseType, String inputName, InputStream input, File outputFile, PatchOptions options, Consumer<String> debugOutput) {
         List<Input> inputs = Collections.singletonList(new StreamInput(inputName, input));
-        patchInternal(baseFile, baseType, inputs, outputFile, debugOutput);
+        patchInternal(baseFile, baseType, inputs, outputFile, options, debugOutput);
     }
 
     public static void patch(File baseFile, PatchBase baseType, List<File> patchBundleFiles, File outputFile, Consumer<String> debugOutput) {
+        patch(baseFile, baseType, patchBundleFiles, outputFile, new PatchOptions(), debugOutput);
+    }
+
+    public static void patch(File baseFile, PatchBase baseType, List<File> patchBundleFiles, File outputFile, PatchOptions options, Consumer<String> debugOutput) {
         List<Input> fileInputs = patchBundleFiles.stream().map(FileInput::new).collect(Collectors.toList());
-        patchInternal(baseFile, baseType, fileInputs, outputFile, debugOutput);
+        patchInternal(baseFile, baseType, fileInputs, outputFile, options, debugOutput);
     }
 
     private interface Input {
@@ -93,10 +118,22 @@ public class Patcher {
     }
 
     private static void patchInternal(File baseFile, PatchBase baseType, List<Input> patchBundles, File
-            outputFile, Consumer<String> debugOutput) {
-        try (ZipFile baseZip = new ZipFile(baseFile)) {
-            // Just keep content in-memory that has been touched
-            Map<String, byte[]> patchedContent = new HashMap<>();
+            outputFile, PatchOptions options, Consumer<String> debugOutput) {
+        ExecutorService workers = null;
+        if (options.getParallelism() > 1) {
+            workers = Executors.newFixedThreadPool(options.getParallelism(), r -> {
+                Thread t = new Thread(r);
+                t.setName("BinaryPatcherWorker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        try (ZipFile baseZip = new ZipFile(baseFile);
+             // Just keep content that has been touched, spilling it to disk once it exceeds the memory budget
+             PatchedContentStore patchedContent = new PatchedContentStore(options.getMemoryBudget(), options.getSpillDirectory())) {
+            Map<String, RawZipFile.Entry> trustedOutput = options.isInPlace() && options.isTrustOutput()
+                    ? readTrustedOutput(outputFile) : null;
 
             for (Input patchBundleInput : patchBundles) {
                 String patchBundleName = patchBundleInput.name();
@@ -108,7 +145,7 @@ public class Patcher {
                 }
                 try {
                     try {
-                        applyPatchBundle(baseType, patchBundleName, inputStream, patchedContent, baseZip, debugOutput);
+                        applyPatchBundle(baseType, patchBundleName, inputStream, patchedContent, baseZip, trustedOutput, workers, options.getParallelism(), debugOutput);
                     } finally {
                         inputStream.close();
                     }
@@ -120,108 +157,586 @@ public class Patcher {
                     }
                 }
             }
+            if (patchedContent.getSpilledBytes() > 0) {
+                debugOutput.accept("Spilled " + patchedContent.getSpilledBytes() + " bytes of patched content to disk");
+            }
 
             // Now stream out the new entries
-            try (ZipOutputStream zOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
-                Enumeration<? extends ZipEntry> entries = baseZip.entries();
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    if (entry.isDirectory()) {
-                        continue;
-                    }
+            try (RawZipFile rawBaseZip = RawZipFile.open(baseFile)) {
+                if (rawBaseZip != null && options.isInPlace()
+                        && patchInPlace(rawBaseZip, baseFile, patchedContent, outputFile, workers, options.getParallelism(), debugOutput)) {
+                    debugOutput.accept("Updated " + outputFile + " in-place");
+                } else if (rawBaseZip != null && canWriteRaw(rawBaseZip, patchedContent)) {
+                    writeRawOutput(rawBaseZip, patchedContent, outputFile, workers, options.getParallelism());
+                } else {
+                    writeOutput(baseZip, patchedContent, outputFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+    }
 
-                    byte[] patched = patchedContent.remove(entry.getName());
-                    if (patched == DELETION_MARKER) {
-                        continue; // Skip deleted file
-                    } else {
-                        // We must create a new entry since we cannot reset the CRC to -1
-                        ZipEntry newEntry = Util.copyEntry(entry);
+    /**
+     * Reads the entries of an existing output whose content can be trusted, see {@link PatchOptions#isTrustOutput()}.
+     */
+    private static @Nullable Map<String, RawZipFile.Entry> readTrustedOutput(File outputFile) throws IOException {
+        if (!outputFile.exists()) {
+            return null;
+        }
+        try (RawZipFile outputZip = RawZipFile.open(outputFile)) {
+            if (outputZip == null) {
+                return null;
+            }
+            Map<String, RawZipFile.Entry> entries = new HashMap<>();
+            for (RawZipFile.Entry entry : outputZip.entries()) {
+                entries.put(entry.name, entry);
+            }
+            return entries;
+        }
+    }
 
-                        zOut.putNextEntry(newEntry);
-                        if (patched != null) {
-                            zOut.write(patched); // Write patched content
-                        } else {
-                            Util.copy(baseZip, entry, zOut); // Stream through unchanged
-                        }
-                        zOut.closeEntry();
-                    }
+    private static void writeOutput(ZipFile baseZip, PatchedContentStore patchedContent, File outputFile) throws IOException {
+        try (ZipOutputStream zOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+            Enumeration<? extends ZipEntry> entries = baseZip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
                 }
 
-                // Append newly created entries
-                for (Map.Entry<String, byte[]> entry : patchedContent.entrySet()) {
-                    if (entry.getValue() == DELETION_MARKER) {
-                        throw new IllegalStateException("Somehow " + entry.getKey() + " was deleted although it does not exist.");
-                    }
+                PatchedContentStore.Content patched = patchedContent.remove(entry.getName());
+                if (patched != null && patched.isDeletion()) {
+                    continue; // Skip deleted file
+                } else {
+                    // We must create a new entry since we cannot reset the CRC to -1
+                    ZipEntry newEntry = Util.copyEntry(entry);
 
-                    zOut.putNextEntry(getNewEntry(entry.getKey()));
-                    zOut.write(entry.getValue());
+                    zOut.putNextEntry(newEntry);
+                    if (patched != null) {
+                        zOut.write(patched.load()); // Write patched content
+                    } else {
+                        Util.copy(baseZip, entry, zOut); // Stream through unchanged
+                    }
                     zOut.closeEntry();
                 }
             }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+
+            // Append newly created entries
+            for (String path : patchedContent.paths()) {
+                PatchedContentStore.Content content = Objects.requireNonNull(patchedContent.getContent(path));
+                if (content.isDeletion()) {
+                    throw new IllegalStateException("Somehow " + path + " was deleted although it does not exist.");
+                }
+
+                zOut.putNextEntry(getNewEntry(path));
+                zOut.write(content.load());
+                zOut.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Checks that the output can be written without zip64, which {@link RawZipWriter} does not support.
+     */
+    private static boolean canWriteRaw(RawZipFile baseZip, PatchedContentStore patchedContent) {
+        long estimatedSize = 0;
+        int entryCount = 0;
+        for (RawZipFile.Entry entry : baseZip.entries()) {
+            estimatedSize += RawZipFile.LOCAL_HEADER_SIZE + RawZipFile.CENTRAL_HEADER_SIZE
+                    + 2L * (entry.nameBytes.length + entry.extra.length) + entry.compressedSize;
+            entryCount++;
+        }
+        for (String path : patchedContent.paths()) {
+            int length = Objects.requireNonNull(patchedContent.getContent(path)).length();
+            // Deflate can slightly expand incompressible data
+            estimatedSize += RawZipFile.LOCAL_HEADER_SIZE + RawZipFile.CENTRAL_HEADER_SIZE
+                    + 2L * path.length() + length + length / 100 + 64;
+            entryCount++;
+        }
+        return RawZipWriter.fits(estimatedSize, entryCount);
+    }
+
+    /**
+     * Writes the output by copying the compressed data of unchanged entries from the base verbatim and deflating
+     * patched and created entries on the workers. Entries are written in the same order as by {@link #writeOutput}.
+     */
+    private static void writeRawOutput(RawZipFile baseZip, PatchedContentStore patchedContent, File outputFile,
+                                       @Nullable ExecutorService workers, int parallelism) throws IOException {
+        List<PendingOutput> outputs = new ArrayList<>();
+        for (RawZipFile.Entry entry : baseZip.entries()) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            PatchedContentStore.Content patched = patchedContent.remove(entry.name);
+            if (patched != null && patched.isDeletion()) {
+                continue; // Skip deleted file
+            }
+            outputs.add(new PendingOutput(entry, entry.nameBytes, entry.flags, entry.dosTime, patched));
+        }
+
+        // Append newly created entries
+        int newEntryTime = RawZipWriter.toDosTime(ZIPTIME);
+        for (String path : patchedContent.paths()) {
+            PatchedContentStore.Content content = Objects.requireNonNull(patchedContent.getContent(path));
+            if (content.isDeletion()) {
+                throw new IllegalStateException("Somehow " + path + " was deleted although it does not exist.");
+            }
+
+            byte[] nameBytes = path.getBytes(StandardCharsets.UTF_8);
+            outputs.add(new PendingOutput(null, nameBytes, RawZipFile.FLAG_UTF8, newEntryTime, content));
         }
 
+        try (RawZipWriter zOut = new RawZipWriter(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+            writeOutputs(baseZip, outputs, zOut, workers, parallelism);
+        }
+    }
+
+    /**
+     * Writes the entries in order, while the workers deflate a bounded number of upcoming entries.
+     */
+    private static void writeOutputs(RawZipFile baseZip, List<PendingOutput> outputs, RawZipWriter zOut,
+                                      @Nullable ExecutorService workers, int parallelism) throws IOException {
+        int maxPending = parallelism * 4;
+        int started = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            while (started < outputs.size() && started < i + maxPending) {
+                outputs.get(started++).start(workers);
+            }
+            outputs.get(i).write(baseZip, zOut);
+        }
+    }
+
+    /**
+     * Updates the output file in-place, see {@link PatchOptions#isInPlace()}.
+     *
+     * @return False if the output has to be rewritten entirely, in which case it may already have been created
+     * as a copy of the base, but is otherwise left unchanged.
+     */
+    private static boolean patchInPlace(RawZipFile baseZip, File baseFile, PatchedContentStore patchedContent, File outputFile,
+                                        @Nullable ExecutorService workers, int parallelism, Consumer<String> debugOutput) throws IOException {
+        if (!outputFile.exists()) {
+            debugOutput.accept("Copying " + baseFile + " to " + outputFile);
+            Files.copy(baseFile.toPath(), outputFile.toPath());
+        }
+
+        Map<String, RawZipFile.Entry> existingEntries = new HashMap<>();
+        List<RawZipFile.Entry> existingOrder;
+        try (RawZipFile outputZip = RawZipFile.open(outputFile)) {
+            if (outputZip == null) {
+                return false;
+            }
+            existingOrder = outputZip.entries();
+            for (RawZipFile.Entry entry : existingOrder) {
+                existingEntries.put(entry.name, entry);
+            }
+        }
+        // Everything is appended after the current end of the file, including the old central directory
+        long appendOffset = outputFile.length();
+
+        // Keep existing entries that already have the right content, and append everything else
+        List<PendingOutput> outputs = new ArrayList<>();
+        Set<String> handled = new HashSet<>();
+        long keptBytes = 0;
+        long appendedBytes = 0;
+        for (RawZipFile.Entry entry : baseZip.entries()) {
+            if (entry.isDirectory() || !handled.add(entry.name)) {
+                continue;
+            }
+
+            PatchedContentStore.Content patched = patchedContent.getContent(entry.name);
+            if (patched != null && patched.isDeletion()) {
+                continue;
+            }
+
+            RawZipFile.Entry existing = existingEntries.get(entry.name);
+            if (patched == null) {
+                if (existing != null && existing.crc == entry.crc && existing.size == entry.size) {
+                    outputs.add(PendingOutput.existing(existing));
+                    keptBytes += storedSize(existing);
+                } else {
+                    outputs.add(new PendingOutput(entry, entry.nameBytes, entry.flags, entry.dosTime, null)); // Restore from base
+                    appendedBytes += entry.compressedSize;
+                }
+            } else if (existing != null && matches(existing, patched)) {
+                outputs.add(PendingOutput.existing(existing));
+                keptBytes += storedSize(existing);
+            } else {
+                outputs.add(new PendingOutput(entry, entry.nameBytes, entry.flags, entry.dosTime, patched));
+                appendedBytes += patched.length();
+            }
+        }
+
+        int newEntryTime = RawZipWriter.toDosTime(ZIPTIME);
+        for (String path : patchedContent.paths()) {
+            if (handled.contains(path)) {
+                continue;
+            }
+            PatchedContentStore.Content content = Objects.requireNonNull(patchedContent.getContent(path));
+            if (content.isDeletion()) {
+                throw new IllegalStateException("Somehow " + path + " was deleted although it does not exist.");
+            }
+
+            RawZipFile.Entry existing = existingEntries.get(path);
+            if (existing != null && matches(existing, content)) {
+                outputs.add(PendingOutput.existing(existing));
+                keptBytes += storedSize(existing);
+            } else {
+                byte[] nameBytes = path.getBytes(StandardCharsets.UTF_8);
+                outputs.add(new PendingOutput(null, nameBytes, RawZipFile.FLAG_UTF8, newEntryTime, content));
+                appendedBytes += content.length();
+            }
+        }
+
+        // Rewrite the whole file instead if most of it would be unreferenced data
+        long unreferencedBytes = appendOffset - keptBytes;
+        if (unreferencedBytes > (appendOffset + appendedBytes) / 2
+                || !RawZipWriter.fits(appendOffset + appendedBytes + appendedBytes / 100 + 128L * outputs.size(), outputs.size())) {
+            return false;
+        }
+
+        if (isUnchanged(outputs, existingOrder)) {
+            return true;
+        }
+
+        // Until the new central directory is complete, the end of the file is not a valid zip file. If writing fails,
+        // the appended data is dropped again, which restores the previous central directory.
+        try (FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.position(appendOffset);
+            try (RawZipWriter zOut = new RawZipWriter(new BufferedOutputStream(Channels.newOutputStream(channel)), appendOffset)) {
+                writeOutputs(baseZip, outputs, zOut, workers, parallelism);
+            }
+        } catch (IOException | RuntimeException e) {
+            try (FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(appendOffset);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the output would list exactly the entries it already lists, in the same order.
+     */
+    private static boolean isUnchanged(List<PendingOutput> outputs, List<RawZipFile.Entry> existingOrder) {
+        if (outputs.size() != existingOrder.size()) {
+            return false;
+        }
+        for (int i = 0; i < outputs.size(); i++) {
+            if (outputs.get(i).existingEntry != existingOrder.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the size of the local header and data of an entry.
+     */
+    private static long storedSize(RawZipFile.Entry entry) {
+        return RawZipFile.LOCAL_HEADER_SIZE + entry.nameBytes.length + entry.extra.length + entry.compressedSize;
+    }
+
+    private static boolean matches(RawZipFile.Entry entry, PatchedContentStore.Content content) throws IOException {
+        if (entry.size != content.length()) {
+            return false;
+        }
+        if (content.crc() != -1) {
+            return (entry.crc & 0xFFFFFFFFL) == content.crc();
+        }
+        byte[] data = content.load();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return entry.crc == (int) crc.getValue();
+    }
+
+    /**
+     * An entry of the output that is either copied from the base, whose patched content is deflated by the workers,
+     * or that is already present in the output when patching in-place.
+     */
+    private static final class PendingOutput {
+        private static final byte[] NO_EXTRA = new byte[0];
+
+        private final RawZipFile.@Nullable Entry existingEntry;
+        private final RawZipFile.@Nullable Entry baseEntry;
+        private final byte[] nameBytes;
+        private final int flags;
+        private final int dosTime;
+        private final PatchedContentStore.@Nullable Content content;
+        @Nullable
+        private CompletableFuture<RawZipWriter.CompressedData> compressedData;
+
+        PendingOutput(RawZipFile.@Nullable Entry baseEntry, byte[] nameBytes, int flags, int dosTime,
+                      PatchedContentStore.@Nullable Content content) {
+            this(null, baseEntry, nameBytes, flags, dosTime, content);
+        }
+
+        private PendingOutput(RawZipFile.@Nullable Entry existingEntry, RawZipFile.@Nullable Entry baseEntry, byte[] nameBytes,
+                              int flags, int dosTime, PatchedContentStore.@Nullable Content content) {
+            this.existingEntry = existingEntry;
+            this.baseEntry = baseEntry;
+            this.nameBytes = nameBytes;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.content = content;
+        }
+
+        static PendingOutput existing(RawZipFile.Entry entry) {
+            return new PendingOutput(entry, null, entry.nameBytes, entry.flags, entry.dosTime, null);
+        }
+
+        /**
+         * Starts loading and deflating the patched content, if there is any.
+         */
+        void start(@Nullable ExecutorService workers) {
+            PatchedContentStore.Content content = this.content;
+            if (content == null || compressedData != null) {
+                return;
+            }
+
+            if (workers == null) {
+                try {
+                    compressedData = CompletableFuture.completedFuture(RawZipWriter.deflate(content.load()));
+                } catch (IOException e) {
+                    CompletableFuture<RawZipWriter.CompressedData> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new UncheckedIOException(e));
+                    compressedData = failed;
+                }
+                return;
+            }
+            compressedData = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return RawZipWriter.deflate(content.load());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, workers);
+        }
+
+        void write(RawZipFile baseZip, RawZipWriter zOut) throws IOException {
+            if (existingEntry != null) {
+                zOut.addExistingEntry(existingEntry);
+                return;
+            }
+            if (content == null) {
+                zOut.writeRawEntry(baseZip, Objects.requireNonNull(baseEntry)); // Copy unchanged entry verbatim
+                return;
+            }
+
+            start(null);
+            RawZipWriter.CompressedData data;
+            try {
+                data = Objects.requireNonNull(compressedData).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Failed to compress " + new String(nameBytes, StandardCharsets.UTF_8), cause);
+            }
+            compressedData = null; // Don't hold on to the data once it has been written
+
+            // Patched entries keep the metadata of the base entry, such as extended timestamps
+            byte[] localExtra = baseEntry != null ? baseZip.readLocalExtra(baseEntry) : NO_EXTRA;
+            byte[] centralExtra = baseEntry != null ? baseEntry.extra : NO_EXTRA;
+            zOut.writeEntry(nameBytes, flags, dosTime, localExtra, centralExtra, data);
+        }
     }
 
     private static void applyPatchBundle(PatchBase baseType,
                                          String patchBundleName,
                                          InputStream patchBundleData,
-                                         Map<String, byte[]> patchedContent,
+                                         PatchedContentStore patchedContent,
                                          ZipFile baseZip,
+                                         @Nullable Map<String, RawZipFile.Entry> trustedOutput,
+                                         @Nullable ExecutorService workers,
+                                         int parallelism,
                                          Consumer<String> debugOutput) throws IOException {
-        try (PatchBundleReader patchBundle = new PatchBundleReader(patchBundleData)) {
+        // The workers also decompress upcoming bundle blocks, while this thread decodes the entries
+        try (PatchBundleReader patchBundle = new PatchBundleReader(patchBundleData, workers)) {
             if (!patchBundle.getSupportedBaseTypes().contains(baseType)) {
                 throw new IllegalArgumentException("Cannot apply patch bundle " + patchBundleName + " to " + baseZip.getName() + " because it only applies to the base types " + patchBundle.getSupportedBaseTypes());
             }
 
-            for (Patch patch : patchBundle) {
+            PendingResults pending = new PendingResults(patchedContent, workers, parallelism * 4);
+            PatchCursor cursor = new PatchCursor();
+            while (patchBundle.next(cursor)) {
                 // Skip patches not applying to the current base
-                if (!patch.getBaseTypes().contains(baseType)) {
+                if (!cursor.appliesTo(baseType)) {
                     continue;
                 }
 
-                switch (patch.getOperation()) {
+                String targetPath = cursor.getPath().toString();
+                // A later entry for the same path must see the result of the earlier one
+                if (pending.contains(targetPath)) {
+                    pending.drain();
+                }
+
+                switch (cursor.getOperation()) {
                     case CREATE:
-                        debugOutput.accept("Adding " + patch.getTargetPath());
-                        patchedContent.put(patch.getTargetPath(), patch.getData());
+                        debugOutput.accept("Adding " + targetPath);
+                        byte[] content = copyData(cursor);
+                        Patch.verifyTargetDigest(targetPath, content, cursor.getTargetCrc(), cursor.getTargetSize());
+                        pending.put(targetPath, content);
                         break;
                     case MODIFY:
-                        debugOutput.accept("Patching " + patch.getTargetPath());
-                        applyPatch(patch, baseZip, patchedContent);
+                    case REPLACE:
+                        PatchTask task = createPatchTask(targetPath, cursor, baseZip, patchedContent);
+                        RawZipFile.Entry trusted = trustedOutput != null ? trustedOutput.get(targetPath) : null;
+                        if (trusted != null && cursor.hasTargetDigest() && (trusted.crc & 0xFFFFFFFFL) == cursor.getTargetCrc()
+                                && trusted.size == cursor.getTargetSize()) {
+                            // Only patch if the result is needed by a later patch or the output is rewritten
+                            debugOutput.accept("Trusting existing output for " + targetPath);
+                            patchedContent.putDeferred(targetPath, cursor.getTargetCrc(), (int) cursor.getTargetSize(), task);
+                        } else {
+                            debugOutput.accept("Patching " + targetPath);
+                            pending.submit(targetPath, task);
+                        }
                         break;
                     case REMOVE:
-                        debugOutput.accept("Deleting " + patch.getTargetPath());
-                        patchedContent.put(patch.getTargetPath(), DELETION_MARKER);
+                        debugOutput.accept("Deleting " + targetPath);
+                        pending.put(targetPath, DELETION_MARKER);
                         break;
                 }
             }
+            pending.drain();
         }
     }
 
-    private static void applyPatch(Patch patch, ZipFile baseZip, Map<String, byte[]> patchedContent) throws
-            IOException {
-        byte[] currentData = patchedContent.get(patch.getTargetPath());
-        if (currentData == null) {
-            ZipEntry entry = baseZip.getEntry(patch.getTargetPath());
-            if (entry == null) {
-                throw new IllegalStateException("Patch targets " + patch.getTargetPath() + ", but it does not exist in the base.");
+    /**
+     * Captures everything needed to apply a MODIFY or REPLACE patch, so it can run on a worker thread while the
+     * cursor advances.
+     */
+    private static PatchTask createPatchTask(String targetPath, PatchCursor patch, ZipFile baseZip, PatchedContentStore patchedContent) {
+        PatchedContentStore.Content previousContent = patchedContent.getContent(targetPath);
+        if (previousContent != null && previousContent.isDeletion()) {
+            throw new IllegalStateException("Patch targets " + targetPath + ", but it was deleted by an earlier patch bundle.");
+        }
+        long expectedChecksum = patch.getBaseChecksumUnsigned();
+        boolean replace = patch.getOperation() == PatchOperation.REPLACE;
+        long targetCrc = patch.getTargetCrc();
+        long targetSize = patch.getTargetSize();
+        byte[] patchData = copyData(patch);
+
+        return () -> {
+            byte[] currentData;
+            if (previousContent != null) {
+                currentData = previousContent.load();
+            } else {
+                ZipEntry entry = baseZip.getEntry(targetPath);
+                if (entry == null) {
+                    throw new IllegalStateException("Patch targets " + targetPath + ", but it does not exist in the base.");
+                }
+                currentData = Util.toByteArray(baseZip, entry);
             }
-            currentData = Util.toByteArray(baseZip, entry);
-        } else if (currentData == DELETION_MARKER) {
-            throw new IllegalStateException("Patch targets " + patch.getTargetPath() + ", but it was deleted by an earlier patch bundle.");
+
+            long checksum = Patch.checksum(currentData);
+            if (checksum != expectedChecksum)
+                throw new IOException("Patch expected " + targetPath + " to have the checksum "
+                        + Long.toHexString(expectedChecksum) + " but it was " + Long.toHexString(checksum));
+
+            byte[] patched = replace ? patchData : Patch.applyDelta(currentData, patchData);
+            Patch.verifyTargetDigest(targetPath, patched, targetCrc, targetSize);
+            return patched;
+        };
+    }
+
+    private static byte[] copyData(PatchCursor cursor) {
+        ByteBuffer data = cursor.getData();
+        return Arrays.copyOfRange(data.array(), data.arrayOffset() + data.position(), data.arrayOffset() + data.limit());
+    }
+
+    interface PatchTask {
+        byte[] apply() throws IOException;
+    }
+
+    /**
+     * Results of the entries of a patch bundle that have not been merged into the patched content yet.
+     * Results are merged strictly in bundle order, regardless of the order in which the workers finish them.
+     */
+    private static final class PendingResults {
+        private final PatchedContentStore patchedContent;
+        @Nullable
+        private final ExecutorService workers;
+        private final int maxPending;
+        private final ArrayDeque<Map.Entry<String, CompletableFuture<byte[]>>> queue = new ArrayDeque<>();
+        private final Set<String> pendingPaths = new HashSet<>();
+
+        PendingResults(PatchedContentStore patchedContent, @Nullable ExecutorService workers, int maxPending) {
+            this.patchedContent = patchedContent;
+            this.workers = workers;
+            this.maxPending = maxPending;
         }
 
-        long checksum = Patch.checksum(currentData);
-        if (checksum != patch.getBaseChecksumUnsigned())
-            throw new IOException("Patch expected " + patch.getTargetPath() + " to have the checksum "
-                    + Long.toHexString(patch.getBaseChecksumUnsigned()) + " but it was " + Long.toHexString(checksum));
+        boolean contains(String targetPath) {
+            return pendingPaths.contains(targetPath);
+        }
 
-        byte[] patchedData = new GDiffPatcher().patch(currentData, patch.getData());
-        patchedContent.put(patch.getTargetPath(), patchedData);
+        void put(String targetPath, byte[] content) throws IOException {
+            add(targetPath, CompletableFuture.completedFuture(content));
+        }
+
+        void submit(String targetPath, PatchTask task) throws IOException {
+            if (workers == null) {
+                add(targetPath, CompletableFuture.completedFuture(task.apply()));
+                return;
+            }
+
+            add(targetPath, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.apply();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, workers));
+        }
+
+        private void add(String targetPath, CompletableFuture<byte[]> result) throws IOException {
+            queue.add(new AbstractMap.SimpleImmutableEntry<>(targetPath, result));
+            pendingPaths.add(targetPath);
+            // Bound the memory held by finished but unmerged results
+            if (queue.size() > maxPending) {
+                mergeOldest();
+            }
+        }
+
+        void drain() throws IOException {
+            while (!queue.isEmpty()) {
+                mergeOldest();
+            }
+        }
+
+        private void mergeOldest() throws IOException {
+            Map.Entry<String, CompletableFuture<byte[]>> oldest = queue.remove();
+            pendingPaths.remove(oldest.getKey());
+            byte[] content;
+            try {
+                content = oldest.getValue().join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("Failed to patch " + oldest.getKey(), cause);
+            }
+            patchedContent.put(oldest.getKey(), content);
+        }
     }
 
-    private static ZipEntry getNewEntry(String name) {
+    static ZipEntry getNewEntry(String name) {
         ZipEntry ret = new ZipEntry(name);
         ret.setTime(ZIPTIME);
         return ret;
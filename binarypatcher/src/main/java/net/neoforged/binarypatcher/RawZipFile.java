@@ -0,0 +1,256 @@
+package net.neoforged.binarypatcher;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal reader for the central directory of a zip file, giving access to the compressed data of its entries.
+ * <p>
+ * This allows copying entries into another zip file without inflating and deflating them again.
+ * Only plain zip files are supported: zip64, encryption and multi-disk archives are rejected by {@link #open(File)},
+ * in which case the caller should fall back to {@link java.util.zip.ZipFile}.
+ * Reads are positional and may happen concurrently from multiple threads.
+ */
+final class RawZipFile implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    static final int FLAG_ENCRYPTED = 0x0001;
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8 = 0x0800;
+
+    private static final int ZIP64_MARKER_16 = 0xFFFF;
+    private static final long ZIP64_MARKER_32 = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final long centralDirectoryOffset;
+
+    private RawZipFile(FileChannel channel, List<Entry> entries, long centralDirectoryOffset) {
+        this.channel = channel;
+        this.entries = entries;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+    }
+
+    /**
+     * @return The opened zip file, or null if it uses features that are not supported.
+     */
+    static @Nullable RawZipFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long[] centralDirectoryOffset = new long[1];
+            List<Entry> entries = readCentralDirectory(channel, centralDirectoryOffset);
+            if (entries == null) {
+                channel.close();
+                return null;
+            }
+            return new RawZipFile(channel, entries, centralDirectoryOffset[0]);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the entries in the order of the central directory, which is also the order used by
+     * {@link java.util.zip.ZipFile#entries()}.
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the offset of the central directory, which is where the data of the last entry ends.
+     */
+    long centralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Reads the local extra field of the entry, which may differ from the extra field in the central directory.
+     */
+    byte[] readLocalExtra(Entry entry) throws IOException {
+        ByteBuffer header = readLocalHeader(entry);
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        ByteBuffer extra = ByteBuffer.allocate(extraLength);
+        readFully(extra, entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength);
+        return extra.array();
+    }
+
+    /**
+     * Copies the data of the entry as it is stored in the zip file, i.e. without decompressing it.
+     */
+    void copyRawData(Entry entry, OutputStream output) throws IOException {
+        ByteBuffer header = readLocalHeader(entry);
+        long position = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(entry.compressedSize, 65536));
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(remaining, buffer.capacity()));
+            readFully(buffer, position);
+            output.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+            remaining -= buffer.limit();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer readLocalHeader(Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, entry.localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.name);
+        }
+        return header;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        readFully(channel, buffer, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of zip file");
+            }
+            position += read;
+        }
+    }
+
+    private static @Nullable List<Entry> readCentralDirectory(FileChannel channel, long[] centralDirectoryOffsetOut) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            return null;
+        }
+
+        // The end of central directory record is followed by a comment of up to 64k
+        int tailLength = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize - tailLength);
+        int eocd = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE
+                    && i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            return null;
+        }
+
+        int diskNumber = tail.getShort(eocd + 4) & 0xFFFF;
+        int centralDirectoryDisk = tail.getShort(eocd + 6) & 0xFFFF;
+        int entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (diskNumber != 0 || centralDirectoryDisk != 0 || entryCount == ZIP64_MARKER_16
+                || centralDirectorySize == ZIP64_MARKER_32 || centralDirectoryOffset == ZIP64_MARKER_32
+                || centralDirectoryOffset + centralDirectorySize > fileSize) {
+            return null;
+        }
+
+        centralDirectoryOffsetOut[0] = centralDirectoryOffset;
+        ByteBuffer cd = ByteBuffer.allocate((int) centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, cd, centralDirectoryOffset);
+        cd.flip();
+
+        List<Entry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            if (cd.remaining() < CENTRAL_HEADER_SIZE || cd.getInt() != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header");
+            }
+            cd.getShort(); // Version made by
+            cd.getShort(); // Version needed to extract
+            int flags = cd.getShort() & 0xFFFF;
+            int method = cd.getShort() & 0xFFFF;
+            int dosTime = cd.getInt();
+            int crc = cd.getInt();
+            long compressedSize = cd.getInt() & 0xFFFFFFFFL;
+            long size = cd.getInt() & 0xFFFFFFFFL;
+            int nameLength = cd.getShort() & 0xFFFF;
+            int extraLength = cd.getShort() & 0xFFFF;
+            int commentLength = cd.getShort() & 0xFFFF;
+            cd.getShort(); // Disk number start
+            cd.getShort(); // Internal attributes
+            cd.getInt(); // External attributes
+            long localHeaderOffset = cd.getInt() & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.get(nameBytes);
+            byte[] extra = new byte[extraLength];
+            cd.get(extra);
+            cd.position(cd.position() + commentLength);
+
+            if ((flags & FLAG_ENCRYPTED) != 0 || compressedSize == ZIP64_MARKER_32 || size == ZIP64_MARKER_32
+                    || localHeaderOffset == ZIP64_MARKER_32) {
+                return null;
+            }
+
+            // Names are decoded as UTF-8 regardless of the flag, matching the default of java.util.zip.ZipFile
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            entries.add(new Entry(name, nameBytes, flags, method, dosTime, crc, compressedSize, size, extra,
+                    localHeaderOffset));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * An entry of the central directory.
+     */
+    static final class Entry {
+        final String name;
+        final byte[] nameBytes;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        final byte[] extra;
+        final long localHeaderOffset;
+
+        Entry(String name, byte[] nameBytes, int flags, int method, int dosTime, int crc, long compressedSize,
+              long size, byte[] extra, long localHeaderOffset) {
+            this.name = name;
+            this.nameBytes = nameBytes;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.extra = extra;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package net.neoforged.binarypatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static net.neoforged.binarypatcher.RawZipFile.CENTRAL_HEADER_SIGNATURE;
+import static net.neoforged.binarypatcher.RawZipFile.END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+import static net.neoforged.binarypatcher.RawZipFile.FLAG_DATA_DESCRIPTOR;
+import static net.neoforged.binarypatcher.RawZipFile.LOCAL_HEADER_SIGNATURE;
+
+/**
+ * Minimal zip writer that writes entries whose compressed data, CRC and sizes are already known.
+ * <p>
+ * Sizes are always stored in the local header, so no data descriptors are written. Zip64 is not supported,
+ * the caller is expected to check {@link #fits(long, int)} upfront.
+ */
+final class RawZipWriter implements Closeable {
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    private static final int VERSION_NEEDED = 20;
+
+    private final OutputStream output;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private long offset;
+    private int entryCount;
+    private boolean closed;
+
+    RawZipWriter(OutputStream output) {
+        this(output, 0);
+    }
+
+    /**
+     * Creates a writer that appends to an existing zip file, whose entries end at the given offset.
+     * Entries that are already present can be kept using {@link #addExistingEntry(RawZipFile.Entry)}.
+     */
+    RawZipWriter(OutputStream output, long startOffset) {
+        this.output = output;
+        this.offset = startOffset;
+    }
+
+    /**
+     * Returns true if a zip file with the given total entry data size and entry count can be written without zip64.
+     * The size must include a generous estimate for the headers.
+     */
+    static boolean fits(long estimatedSize, int entryCount) {
+        return estimatedSize < MAX_32 && entryCount < MAX_ENTRIES;
+    }
+
+    /**
+     * Writes an entry whose data is the raw data of an entry of another zip file, keeping its metadata.
+     */
+    void writeRawEntry(RawZipFile source, RawZipFile.Entry entry) throws IOException {
+        byte[] localExtra = source.readLocalExtra(entry);
+        writeHeaders(entry.nameBytes, entry.flags & ~FLAG_DATA_DESCRIPTOR, entry.method, entry.dosTime, entry.crc,
+                entry.compressedSize, entry.size, localExtra, entry.extra);
+        source.copyRawData(entry, new CountingOutput());
+    }
+
+    /**
+     * Lists an entry that already exists in the appended file in the new central directory, without copying it.
+     */
+    void addExistingEntry(RawZipFile.Entry entry) throws IOException {
+        if (entryCount == MAX_ENTRIES) {
+            throw new ZipException("Zip file exceeds the limits of the zip format without zip64");
+        }
+        // The local header is left untouched, so the flags must stay consistent with it
+        writeCentralHeader(entry.nameBytes, entry.flags, entry.method, entry.dosTime, entry.crc,
+                entry.compressedSize, entry.size, entry.extra, entry.localHeaderOffset);
+        entryCount++;
+    }
+
+    /**
+     * Writes an entry with the given, already deflated data.
+     */
+    void writeEntry(byte[] nameBytes, int flags, int dosTime, byte[] localExtra, byte[] centralExtra,
+                    CompressedData data) throws IOException {
+        writeHeaders(nameBytes, flags & ~FLAG_DATA_DESCRIPTOR, ZipEntry.DEFLATED, dosTime, data.crc,
+                data.length, data.uncompressedSize, localExtra, centralExtra);
+        output.write(data.data, 0, data.length);
+        offset += data.length;
+    }
+
+    private void writeHeaders(byte[] nameBytes, int flags, int method, int dosTime, int crc, long compressedSize,
+                              long size, byte[] localExtra, byte[] centralExtra) throws IOException {
+        if (entryCount == MAX_ENTRIES || offset > MAX_32 || compressedSize >= MAX_32 || size >= MAX_32) {
+            throw new ZipException("Zip file exceeds the limits of the zip format without zip64");
+        }
+
+        ByteArrayOutputStream local = new ByteArrayOutputStream(30 + nameBytes.length + localExtra.length);
+        writeInt(local, LOCAL_HEADER_SIGNATURE);
+        writeShort(local, VERSION_NEEDED);
+        writeShort(local, flags);
+        writeShort(local, method);
+        writeInt(local, dosTime);
+        writeInt(local, crc);
+        writeInt(local, (int) compressedSize);
+        writeInt(local, (int) size);
+        writeShort(local, nameBytes.length);
+        writeShort(local, localExtra.length);
+        local.write(nameBytes);
+        local.write(localExtra);
+
+        writeCentralHeader(nameBytes, flags, method, dosTime, crc, compressedSize, size, centralExtra, offset);
+
+        local.writeTo(output);
+        offset += local.size();
+        entryCount++;
+    }
+
+    private void writeCentralHeader(byte[] nameBytes, int flags, int method, int dosTime, int crc, long compressedSize,
+                                    long size, byte[] extra, long localHeaderOffset) throws IOException {
+        writeInt(centralDirectory, CENTRAL_HEADER_SIGNATURE);
+        writeShort(centralDirectory, VERSION_NEEDED); // Version made by
+        writeShort(centralDirectory, VERSION_NEEDED);
+        writeShort(centralDirectory, flags);
+        writeShort(centralDirectory, method);
+        writeInt(centralDirectory, dosTime);
+        writeInt(centralDirectory, crc);
+        writeInt(centralDirectory, (int) compressedSize);
+        writeInt(centralDirectory, (int) size);
+        writeShort(centralDirectory, nameBytes.length);
+        writeShort(centralDirectory, extra.length);
+        writeShort(centralDirectory, 0); // Comment length
+        writeShort(centralDirectory, 0); // Disk number start
+        writeShort(centralDirectory, 0); // Internal attributes
+        writeInt(centralDirectory, 0); // External attributes
+        writeInt(centralDirectory, (int) localHeaderOffset);
+        centralDirectory.write(nameBytes);
+        centralDirectory.write(extra);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (offset > MAX_32) {
+                throw new ZipException("Zip file exceeds the limits of the zip format without zip64");
+            }
+            long centralDirectoryOffset = offset;
+            centralDirectory.writeTo(output);
+
+            ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+            writeInt(end, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeShort(end, 0); // Disk number
+            writeShort(end, 0); // Disk with central directory
+            writeShort(end, entryCount);
+            writeShort(end, entryCount);
+            writeInt(end, centralDirectory.size());
+            writeInt(end, (int) centralDirectoryOffset);
+            writeShort(end, 0); // Comment length
+            end.writeTo(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Deflates the data the same way {@link java.util.zip.ZipOutputStream} does by default.
+     */
+    static CompressedData deflate(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, data.length + data.length / 1000 + 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return new CompressedData(buffer, length, (int) crc.getValue(), data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Converts a Java timestamp to the packed MS-DOS date and time used in zip headers, in the local time zone.
+     */
+    static int toDosTime(long time) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = dateTime.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | dateTime.getMonthValue() << 21 | dateTime.getDayOfMonth() << 16
+                | dateTime.getHour() << 11 | dateTime.getMinute() << 5 | dateTime.getSecond() >> 1;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    /**
+     * Deflated entry data along with the values needed for its headers.
+     */
+    static final class CompressedData {
+        final byte[] data;
+        final int length;
+        final int crc;
+        final long uncompressedSize;
+
+        CompressedData(byte[] data, int length, int crc, long uncompressedSize) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    private final class CountingOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+            offset++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+            offset += len;
+        }
+    }
+}
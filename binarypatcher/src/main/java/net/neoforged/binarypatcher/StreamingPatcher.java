@@ -0,0 +1,168 @@
+package net.neoforged.binarypatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Applies patch bundles to a base that is only available as a stream, such as a base that is still being downloaded.
+ * <p>
+ * The patch bundles are read completely before the base is read, and the operations of all bundles are folded
+ * per path like {@link PatchBundleComposer} does. The base is then read exactly once: untouched entries are
+ * streamed through without being buffered, while entries targeted by a MODIFY are buffered one at a time to apply
+ * their patches. Apart from the patch bundles themselves, memory is bounded by the largest patched entry and no
+ * temporary files are written.
+ */
+public final class StreamingPatcher {
+    private StreamingPatcher() {
+    }
+
+    /**
+     * Patches the base and writes the result to the given zip stream. Untouched entries keep their metadata,
+     * new entries are appended after the entries of the base. The output stream is neither finished nor closed.
+     *
+     * @param patchBundles The patch bundles in the order they are applied. They are closed once they have been read.
+     */
+    public static void patch(ZipInputStream base, PatchBase baseType, List<InputStream> patchBundles, ZipOutputStream output,
+                             Consumer<String> debugOutput) throws IOException {
+        patch(base, baseType, patchBundles, (entry, content) -> {
+            output.putNextEntry(entry);
+            Util.copy(content, output);
+            output.closeEntry();
+        }, debugOutput);
+    }
+
+    /**
+     * Patches the base and passes every entry of the result to the given sink, in the order described by
+     * {@link #patch(ZipInputStream, PatchBase, List, ZipOutputStream, Consumer)}.
+     *
+     * @param patchBundles The patch bundles in the order they are applied. They are closed once they have been read.
+     */
+    public static void patch(ZipInputStream base, PatchBase baseType, List<InputStream> patchBundles, EntrySink sink,
+                             Consumer<String> debugOutput) throws IOException {
+        Map<String, List<Patch>> effectivePatches = readPatches(baseType, patchBundles);
+
+        InputStream entryContent = new NonClosingInputStream(base);
+        ZipEntry baseEntry;
+        while ((baseEntry = base.getNextEntry()) != null) {
+            if (baseEntry.isDirectory()) {
+                continue;
+            }
+
+            String path = baseEntry.getName();
+            List<Patch> patches = effectivePatches.remove(path);
+            if (patches == null) {
+                sink.accept(Util.copyEntry(baseEntry), entryContent);
+                continue;
+            }
+
+            byte[] content;
+            if (patches.get(0).getOperation().hasBaseChecksum()) {
+                debugOutput.accept("Patching " + path);
+                content = applyModifications(path, readFully(base), patches);
+            } else if (patches.get(0).getOperation() == PatchOperation.CREATE) {
+                debugOutput.accept("Replacing " + path);
+                content = patches.get(0).getData();
+            } else {
+                debugOutput.accept("Deleting " + path);
+                continue;
+            }
+            // Patched entries keep the metadata of the base entry
+            sink.accept(Util.copyEntry(baseEntry), new ByteArrayInputStream(content));
+        }
+
+        // Whatever is left does not exist in the base
+        for (Map.Entry<String, List<Patch>> entry : effectivePatches.entrySet()) {
+            String path = entry.getKey();
+            Patch patch = entry.getValue().get(0);
+            switch (patch.getOperation()) {
+                case CREATE:
+                    debugOutput.accept("Adding " + path);
+                    sink.accept(Patcher.getNewEntry(path), new ByteArrayInputStream(patch.getData()));
+                    break;
+                case MODIFY:
+                case REPLACE:
+                    throw new IllegalStateException("Patch targets " + path + ", but it does not exist in the base.");
+                case REMOVE:
+                    throw new IllegalStateException("Somehow " + path + " was deleted although it does not exist.");
+            }
+        }
+    }
+
+    /**
+     * Reads all bundles and folds their operations into the effective operations of every path.
+     */
+    private static Map<String, List<Patch>> readPatches(PatchBase baseType, List<InputStream> patchBundles) throws IOException {
+        Map<String, List<Patch>> effectivePatches = new LinkedHashMap<>();
+        for (int i = 0; i < patchBundles.size(); i++) {
+            String patchBundleName = "patch bundle #" + (i + 1);
+            try (PatchBundleReader reader = new PatchBundleReader(patchBundles.get(i))) {
+                if (!reader.getSupportedBaseTypes().contains(baseType)) {
+                    throw new IllegalArgumentException("Cannot apply " + patchBundleName + " because it only applies to the base types "
+                            + reader.getSupportedBaseTypes());
+                }
+                for (Patch patch : reader) {
+                    if (patch.getBaseTypes().contains(baseType)) {
+                        List<Patch> previous = effectivePatches.getOrDefault(patch.getTargetPath(), Collections.emptyList());
+                        effectivePatches.put(patch.getTargetPath(), PatchBundleComposer.append(previous, patch, patchBundleName));
+                    }
+                }
+            }
+        }
+        return effectivePatches;
+    }
+
+    private static byte[] applyModifications(String path, byte[] content, List<Patch> patches) throws IOException {
+        for (Patch patch : patches) {
+            long checksum = Patch.checksum(content);
+            if (checksum != patch.getBaseChecksumUnsigned()) {
+                throw new IOException("Patch expected " + path + " to have the checksum "
+                        + Long.toHexString(patch.getBaseChecksumUnsigned()) + " but it was " + Long.toHexString(checksum));
+            }
+            content = patch.getOperation() == PatchOperation.REPLACE ? patch.getData() : Patch.applyDelta(content, patch.getData());
+            Patch.verifyTargetDigest(path, content, patch.getTargetCrc(), patch.getTargetSize());
+        }
+        return content;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Util.copy(in, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Receives the entries of the patched result.
+     */
+    @FunctionalInterface
+    public interface EntrySink {
+        /**
+         * @param content The content of the entry. It is only valid until this method returns and must not be closed
+         *                by the sink, since it may be backed by the base stream.
+         */
+        void accept(ZipEntry entry, InputStream content) throws IOException;
+    }
+
+    /**
+     * Protects the base stream from sinks that close the content they are given.
+     */
+    private static final class NonClosingInputStream extends FilterInputStream {
+        NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
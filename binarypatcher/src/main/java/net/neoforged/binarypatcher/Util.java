@@ -4,13 +4,14 @@
  */
 package net.neoforged.binarypatcher;
 
+import net.neoforged.cliutils.paths.AntPathFilter;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -70,9 +71,12 @@ public class Util {
         return newEntry;
     }
 
+    /**
+     * Create a predicate from Ant-style path filters, with the same semantics as {@link #pathFilterToRegexp}
+     * for all paths that do not contain line terminators.
+     */
     public static Predicate<String> createPathFilter(Collection<String> filters) {
-        String regexp = pathFilterToRegexp(filters);
-        return Pattern.compile(regexp).asPredicate();
+        return AntPathFilter.compile(filters);
     }
 
     /**
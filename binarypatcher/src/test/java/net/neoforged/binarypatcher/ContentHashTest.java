@@ -0,0 +1,24 @@
+package net.neoforged.binarypatcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContentHashTest {
+    @Test
+    void shouldMatchReferenceMurmur3() {
+        assertThat(ContentHash.of(new byte[0])).hasToString("00000000000000000000000000000000");
+        assertThat(ContentHash.of("hello".getBytes(StandardCharsets.UTF_8)))
+                .hasToString("cbd8a7b341bd9b025b1e906a48ae1d19");
+        assertThat(ContentHash.of("The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8)))
+                .hasToString("e34bbc7bbc071b6c7a433ca9c49a9347");
+    }
+
+    @Test
+    void shouldBeEqualForEqualContent() {
+        assertThat(ContentHash.of(new byte[]{1, 2, 3})).isEqualTo(ContentHash.of(new byte[]{1, 2, 3}));
+        assertThat(ContentHash.of(new byte[]{1, 2, 3})).isNotEqualTo(ContentHash.of(new byte[]{1, 2, 4}));
+    }
+}
@@ -0,0 +1,107 @@
+package net.neoforged.binarypatcher;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IndexedPatchBundleTest {
+    @Test
+    void shouldReadEntriesInAnyOrder(@TempDir File tempDir) throws IOException {
+        File bundleFile = new File(tempDir, "test.bundle");
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(PatchBundleFormat.V2);
+        options.setBlockSize(100);
+        options.setCompressionExecutor(ForkJoinPool.commonPool());
+
+        try (FileOutputStream fos = new FileOutputStream(bundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos,
+                     EnumSet.of(PatchBase.CLIENT, PatchBase.SERVER), options)) {
+            for (int i = 0; i < 50; i++) {
+                writer.writeCreateEntry("file" + i + ".txt", ("content " + i).getBytes(),
+                        EnumSet.of(PatchBase.CLIENT));
+            }
+            writer.writeModifyEntry("file0.txt", 0xCAFEBABEL, new byte[]{1, 2, 3},
+                    EnumSet.of(PatchBase.SERVER));
+        }
+
+        try (IndexedPatchBundle bundle = new IndexedPatchBundle(bundleFile)) {
+            assertThat(bundle.getSupportedBaseTypes()).containsExactlyInAnyOrder(PatchBase.CLIENT, PatchBase.SERVER);
+            assertThat(bundle.getEntries()).hasSize(51);
+
+            for (int i = 49; i >= 0; i--) {
+                List<IndexedPatchBundle.Entry> entries = bundle.getEntries("file" + i + ".txt");
+                Patch patch = bundle.readPatch(entries.get(0));
+                assertThat(patch.getOperation()).isEqualTo(PatchOperation.CREATE);
+                assertThat(patch.getData()).isEqualTo(("content " + i).getBytes());
+            }
+
+            List<IndexedPatchBundle.Entry> entries = bundle.getEntries("file0.txt");
+            assertThat(entries).hasSize(2);
+            IndexedPatchBundle.Entry modifyEntry = entries.get(1);
+            assertThat(modifyEntry.getOperation()).isEqualTo(PatchOperation.MODIFY);
+            assertThat(modifyEntry.getBaseTypes()).containsExactly(PatchBase.SERVER);
+            assertThat(modifyEntry.getDataLength()).isEqualTo(3);
+            Patch patch = bundle.readPatch(modifyEntry);
+            assertThat(patch.getBaseChecksumUnsigned()).isEqualTo(0xCAFEBABEL);
+            assertThat(patch.getData()).containsExactly(1, 2, 3);
+
+            assertThat(bundle.getEntries("missing.txt")).isEmpty();
+        }
+    }
+
+    @Test
+    void shouldReadBundlesWithSharedDictionary(@TempDir File tempDir) throws IOException {
+        File bundleFile = new File(tempDir, "test.bundle");
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(PatchBundleFormat.V2);
+        options.setBlockSize(200);
+        options.setDictionarySize(4096);
+
+        try (FileOutputStream fos = new FileOutputStream(bundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos, EnumSet.of(PatchBase.CLIENT), options)) {
+            for (int i = 0; i < 50; i++) {
+                writer.writeCreateEntry("file" + i + ".txt", ("net/neoforged/common/SharedContent " + i).getBytes(),
+                        EnumSet.of(PatchBase.CLIENT));
+            }
+        }
+
+        try (IndexedPatchBundle bundle = new IndexedPatchBundle(bundleFile)) {
+            for (int i = 49; i >= 0; i--) {
+                Patch patch = bundle.readPatch(bundle.getEntries("file" + i + ".txt").get(0));
+                assertThat(patch.getData()).isEqualTo(("net/neoforged/common/SharedContent " + i).getBytes());
+            }
+        }
+
+        try (PatchBundleReader reader = new PatchBundleReader(bundleFile)) {
+            int i = 0;
+            for (Patch patch : reader) {
+                assertThat(patch.getTargetPath()).isEqualTo("file" + i + ".txt");
+                assertThat(patch.getData()).isEqualTo(("net/neoforged/common/SharedContent " + i).getBytes());
+                i++;
+            }
+            assertThat(i).isEqualTo(50);
+        }
+    }
+
+    @Test
+    void shouldRejectV1Bundles(@TempDir File tempDir) throws IOException {
+        File bundleFile = new File(tempDir, "test.bundle");
+        try (FileOutputStream fos = new FileOutputStream(bundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos, EnumSet.of(PatchBase.CLIENT))) {
+            writer.writeCreateEntry("file.txt", "content".getBytes(), EnumSet.of(PatchBase.CLIENT));
+        }
+
+        assertThatThrownBy(() -> new IndexedPatchBundle(bundleFile))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Not an indexed patch bundle");
+    }
+}
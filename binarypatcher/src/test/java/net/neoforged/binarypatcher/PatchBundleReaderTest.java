@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.LZMAOutputStream;
@@ -19,6 +20,8 @@ import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
 import static net.neoforged.binarypatcher.PatchBundleConstants.BUNDLE_SIGNATURE;
@@ -528,6 +531,163 @@ class PatchBundleReaderTest {
         }
     }
 
+    @Test
+    void shouldReadV2BundleWithMultipleBlocks() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(PatchBundleFormat.V2);
+        options.setBlockSize(64);
+
+        try (PatchBundleWriter writer = new PatchBundleWriter(baos,
+                EnumSet.allOf(PatchBase.class), options)) {
+            for (int i = 0; i < 20; i++) {
+                writer.writeCreateEntry("file" + i + ".txt", ("content " + i).getBytes(),
+                        EnumSet.of(PatchBase.CLIENT));
+            }
+            writer.writeModifyEntry("existing/file.bin", 0xDEADBEEFL,
+                    new byte[]{1, 2, 3, 4, 5}, EnumSet.of(PatchBase.SERVER));
+            writer.writeRemoveEntry("old/file.dat",
+                    EnumSet.of(PatchBase.JOINED));
+        }
+
+        try (PatchBundleReader reader = new PatchBundleReader(
+                new ByteArrayInputStream(baos.toByteArray()))) {
+            assertThat(reader.getEntryCount()).isEqualTo(22);
+            assertThat(reader.getSupportedBaseTypes())
+                    .containsExactlyInAnyOrder(PatchBase.values());
+
+            List<Patch> entries = new ArrayList<>();
+            for (Patch patch : reader) {
+                entries.add(patch);
+            }
+
+            assertThat(entries).hasSize(22);
+            for (int i = 0; i < 20; i++) {
+                assertThat(entries.get(i).getTargetPath()).isEqualTo("file" + i + ".txt");
+                assertThat(entries.get(i).getData()).isEqualTo(("content " + i).getBytes());
+            }
+            assertThat(entries.get(20).getOperation()).isEqualTo(PatchOperation.MODIFY);
+            assertThat(entries.get(20).getBaseChecksumUnsigned()).isEqualTo(0xDEADBEEFL);
+            assertThat(entries.get(20).getData()).containsExactly(1, 2, 3, 4, 5);
+            assertThat(entries.get(21).getOperation()).isEqualTo(PatchOperation.REMOVE);
+        }
+    }
+
+    @Test
+    void shouldDecompressV2BlocksOnExecutorInEntryOrder() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(PatchBundleFormat.V2);
+        options.setBlockSize(32);
+
+        try (PatchBundleWriter writer = new PatchBundleWriter(baos,
+                EnumSet.of(PatchBase.CLIENT), options)) {
+            for (int i = 0; i < 200; i++) {
+                writer.writeCreateEntry("file" + i + ".txt", ("content " + i).getBytes(),
+                        EnumSet.of(PatchBase.CLIENT));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (PatchBundleReader reader = new PatchBundleReader(
+                new ByteArrayInputStream(baos.toByteArray()), executor)) {
+            int i = 0;
+            for (Patch patch : reader) {
+                assertThat(patch.getTargetPath()).isEqualTo("file" + i + ".txt");
+                assertThat(patch.getData()).isEqualTo(("content " + i).getBytes());
+                i++;
+            }
+            assertThat(i).isEqualTo(200);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldReadEntriesIntoReusedCursor() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] largeData = new byte[10000];
+        for (int i = 0; i < largeData.length; i++) {
+            largeData[i] = (byte) i;
+        }
+
+        try (PatchBundleWriter writer = new PatchBundleWriter(baos,
+                EnumSet.of(PatchBase.CLIENT, PatchBase.SERVER))) {
+            writer.writeCreateEntry("large.bin", largeData, EnumSet.of(PatchBase.CLIENT));
+            writer.writeModifyEntry("some/path/file.txt", 0xDEADBEEFL,
+                    new byte[]{1, 2, 3}, EnumSet.of(PatchBase.SERVER));
+            writer.writeRemoveEntry("old.txt", EnumSet.of(PatchBase.CLIENT, PatchBase.SERVER));
+        }
+
+        try (PatchBundleReader reader = new PatchBundleReader(
+                new ByteArrayInputStream(baos.toByteArray()))) {
+            PatchCursor cursor = new PatchCursor();
+
+            assertThat(reader.next(cursor)).isTrue();
+            assertThat(cursor.getOperation()).isEqualTo(PatchOperation.CREATE);
+            assertThat(cursor.getPath().toString()).isEqualTo("large.bin");
+            assertThat(cursor.appliesTo(PatchBase.CLIENT)).isTrue();
+            assertThat(cursor.appliesTo(PatchBase.SERVER)).isFalse();
+            assertThat(cursor.toPatch().getData()).isEqualTo(largeData);
+
+            assertThat(reader.next(cursor)).isTrue();
+            assertThat(cursor.getOperation()).isEqualTo(PatchOperation.MODIFY);
+            assertThat(cursor.getPath().toString()).isEqualTo("some/path/file.txt");
+            assertThat(cursor.getPath().length()).isEqualTo(18);
+            assertThat(cursor.getPath().charAt(4)).isEqualTo('/');
+            assertThat(cursor.getBaseChecksumUnsigned()).isEqualTo(0xDEADBEEFL);
+            assertThat(cursor.getData().remaining()).isEqualTo(3);
+            assertThat(cursor.toPatch().getData()).containsExactly(1, 2, 3);
+
+            assertThat(reader.next(cursor)).isTrue();
+            assertThat(cursor.getOperation()).isEqualTo(PatchOperation.REMOVE);
+            assertThat(cursor.getBaseTypes()).containsExactlyInAnyOrder(PatchBase.CLIENT, PatchBase.SERVER);
+            assertThat(cursor.getData().remaining()).isZero();
+
+            assertThat(reader.next(cursor)).isFalse();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(PatchBundleFormat.class)
+    void shouldSkipDataWhenReadingMetadata(PatchBundleFormat format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(format);
+        options.setBlockSize(1000);
+
+        try (PatchBundleWriter writer = format == PatchBundleFormat.V1
+                ? new PatchBundleWriter(baos, EnumSet.of(PatchBase.CLIENT))
+                : new PatchBundleWriter(baos, EnumSet.of(PatchBase.CLIENT), options)) {
+            writer.writeCreateEntry("large.bin", new byte[10000], EnumSet.of(PatchBase.CLIENT));
+            writer.writeModifyEntry("file.txt", 0xDEADBEEFL, new byte[]{1, 2, 3}, EnumSet.of(PatchBase.CLIENT));
+            writer.writeRemoveEntry("old.txt", EnumSet.of(PatchBase.CLIENT));
+        }
+
+        try (PatchBundleReader reader = new PatchBundleReader(
+                new ByteArrayInputStream(baos.toByteArray()))) {
+            PatchCursor cursor = new PatchCursor();
+
+            assertThat(reader.nextMetadata(cursor)).isTrue();
+            assertThat(cursor.getPath().toString()).isEqualTo("large.bin");
+            assertThat(cursor.getDataLength()).isEqualTo(10000);
+            assertThat(cursor.getData().remaining()).isZero();
+            assertThatThrownBy(cursor::toPatch).isInstanceOf(IllegalStateException.class);
+
+            // Mixing both modes keeps the stream in sync
+            assertThat(reader.next(cursor)).isTrue();
+            assertThat(cursor.getPath().toString()).isEqualTo("file.txt");
+            assertThat(cursor.getBaseChecksumUnsigned()).isEqualTo(0xDEADBEEFL);
+            assertThat(cursor.toPatch().getData()).containsExactly(1, 2, 3);
+
+            assertThat(reader.nextMetadata(cursor)).isTrue();
+            assertThat(cursor.getOperation()).isEqualTo(PatchOperation.REMOVE);
+            assertThat(cursor.getDataLength()).isZero();
+
+            assertThat(reader.nextMetadata(cursor)).isFalse();
+        }
+    }
+
     // Helper method to create a simple bundle for testing
     private ByteArrayOutputStream createSimpleBundle() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -95,6 +95,62 @@ class PatchBundleWriterTest {
         }
     }
 
+    @Test
+    void shouldStreamEntriesWhenEntryCountIsKnown() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try (PatchBundleWriter writer = new PatchBundleWriter(baos,
+                EnumSet.allOf(PatchBase.class), 3)) {
+            writer.writeCreateEntry("first.txt", "1".getBytes(),
+                    EnumSet.of(PatchBase.CLIENT));
+            writer.writeModifyEntry("second.txt", 100L, "2".getBytes(),
+                    EnumSet.of(PatchBase.SERVER));
+            writer.writeRemoveEntry("third.txt",
+                    EnumSet.of(PatchBase.JOINED));
+        }
+
+        try (PatchBundleReader reader = new PatchBundleReader(
+                new ByteArrayInputStream(baos.toByteArray()))) {
+            assertThat(reader.getEntryCount()).isEqualTo(3);
+            assertThat(reader.getSupportedBaseTypes()).isEqualTo(EnumSet.allOf(PatchBase.class));
+
+            Patch e1 = reader.readEntry();
+            assertThat(e1.getTargetPath()).isEqualTo("first.txt");
+            assertThat(e1.getData()).isEqualTo("1".getBytes());
+
+            Patch e2 = reader.readEntry();
+            assertThat(e2.getTargetPath()).isEqualTo("second.txt");
+            assertThat(e2.getBaseChecksumUnsigned()).isEqualTo(100L);
+
+            Patch e3 = reader.readEntry();
+            assertThat(e3.getTargetPath()).isEqualTo("third.txt");
+            assertThat(reader.hasMoreEntries()).isFalse();
+        }
+    }
+
+    @Test
+    void shouldThrowExceptionWhenStreamedEntryCountDoesNotMatch() throws IOException {
+        PatchBundleWriter writer = new PatchBundleWriter(new ByteArrayOutputStream(),
+                EnumSet.of(PatchBase.CLIENT), 1);
+        writer.writeCreateEntry("file1.txt", "content1".getBytes(),
+                EnumSet.of(PatchBase.CLIENT));
+
+        assertThatThrownBy(() ->
+                writer.writeCreateEntry("file2.txt", "content2".getBytes(),
+                        EnumSet.of(PatchBase.CLIENT)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("declared with 1 entries");
+
+        PatchBundleWriter shortWriter = new PatchBundleWriter(new ByteArrayOutputStream(),
+                EnumSet.of(PatchBase.CLIENT), 2);
+        shortWriter.writeCreateEntry("file1.txt", "content1".getBytes(),
+                EnumSet.of(PatchBase.CLIENT));
+
+        assertThatThrownBy(shortWriter::close)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("but 1 were written");
+    }
+
     @Test
     void shouldThrowExceptionForEmptyBundleDistributions() {
         assertThatThrownBy(() ->
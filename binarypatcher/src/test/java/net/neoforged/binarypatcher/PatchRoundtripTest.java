@@ -14,13 +14,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -231,6 +238,79 @@ public class PatchRoundtripTest {
         assertThat(getPatchBundleSummary()).containsExactly("com/example/TestClass.class MODIFY [CLIENT]");
     }
 
+    @Test
+    void testOptimizedConstantPoolIsCached() throws IOException {
+        byte[] baseClass = generateSimpleClassFile("com/example/TestClass", 42);
+        byte[] modifiedClass = generateSimpleClassFile("com/example/TestClass", 99);
+        createZipFile(baseFile, Collections.singletonMap("com/example/TestClass.class", baseClass), null);
+        createZipFile(modifiedFile, Collections.singletonMap("com/example/TestClass.class", modifiedClass), null);
+
+        File cacheDirectory = tempDir.resolve("constantpool-cache").toFile();
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setOptimizeConstantPool(true);
+        diffOptions.setConstantPoolCacheDirectory(cacheDirectory);
+        diffOptions.setStoreTargetDigests(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+
+        // The target digest describes the optimized class, which is what the patch produces
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile).get("com/example/TestClass.class"))
+                .isEqualTo(ConstantPoolOptimizer.optimize(baseClass, modifiedClass));
+
+        // Regenerating reads the optimized class from the cache instead of optimizing it again
+        File[] cacheFiles = cacheDirectory.listFiles();
+        assertThat(cacheFiles).hasSize(1);
+        Files.write(cacheFiles[0].toPath(), modifiedClass);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile).get("com/example/TestClass.class")).isEqualTo(modifiedClass);
+    }
+
+    @Test
+    void testJavaClassFilePatchingWithStructuralDiff() throws IOException {
+        // Create base ZIP with a class file that has several methods
+        byte[] baseClass = generateClassFileWithMethods("com/example/TestClass", 1, 2, 3, 4, 5);
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("com/example/TestClass.class", baseClass);
+        createZipFile(baseFile, baseEntries, null);
+
+        // Only a single method body changes in the modified class
+        byte[] modifiedClass = generateClassFileWithMethods("com/example/TestClass", 1, 2, 42, 4, 5);
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("com/example/TestClass.class", modifiedClass);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setStructuralClassDiff(true);
+        Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
+        baseFiles.put(PatchBase.CLIENT, baseFile);
+        Map<PatchBase, File> modifiedFiles = new LinkedHashMap<>();
+        modifiedFiles.put(PatchBase.CLIENT, modifiedFile);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, diffOptions);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+
+        Map<String, byte[]> outputEntries = readZipEntries(outputFile);
+        assertThat(outputEntries.get("com/example/TestClass.class")).isEqualTo(modifiedClass);
+
+        assertThat(getPatchBundleSummary()).containsExactly("com/example/TestClass.class MODIFY [CLIENT]");
+    }
+
+    @Test
+    void testClassFileDeltaRoundtrip() throws IOException {
+        byte[] baseClass = generateClassFileWithMethods("com/example/TestClass", 1, 2, 3, 4, 5);
+        byte[] modifiedClass = generateClassFileWithMethods("com/example/TestClass", 1, 2, 42, 4);
+
+        byte[] delta = ClassFileDelta.compute(baseClass, modifiedClass);
+        assertThat(delta).isNotNull();
+        assertThat(ClassFileDelta.isClassFileDelta(delta)).isTrue();
+        assertThat(Patch.applyDelta(baseClass, delta)).isEqualTo(modifiedClass);
+
+        // Non-class content is rejected so the caller can fall back to xdelta
+        assertThat(ClassFileDelta.compute("Some text".getBytes(), "Other text".getBytes())).isNull();
+    }
+
     @Test
     void testMultiBasePatchBundle_SharedAndUniqueFiles() throws IOException {
         // CLIENT base
@@ -303,6 +383,23 @@ public class PatchRoundtripTest {
         assertThat(readZipEntries(serverOutput)).containsExactlyInAnyOrderEntriesOf(modifiedServerEntries);
     }
 
+    @Test
+    void testPatchFromGroupsBasesWithIdenticalContent() throws IOException {
+        EnumMap<PatchBase, byte[]> baseData = new EnumMap<>(PatchBase.class);
+        baseData.put(PatchBase.CLIENT, "shared".getBytes());
+        baseData.put(PatchBase.SERVER, "unique".getBytes());
+        baseData.put(PatchBase.JOINED, "shared".getBytes());
+
+        List<Patch> patches = new ArrayList<>();
+        Patch.from("file.txt", baseData, "modified".getBytes(), DIFF_OPTIONS, patches::add);
+
+        assertThat(patches).extracting(Patch::getBaseTypes).containsExactly(
+                EnumSet.of(PatchBase.CLIENT, PatchBase.JOINED),
+                EnumSet.of(PatchBase.SERVER)
+        );
+        assertThat(Patch.applyDelta("unique".getBytes(), patches.get(1).getData())).isEqualTo("modified".getBytes());
+    }
+
     @Test
     void testWrongBaseTypeApplication() throws IOException {
         // Create CLIENT base
@@ -392,6 +489,573 @@ public class PatchRoundtripTest {
                 .hasMessage("Path '" + path + "' contains invalid characters.");
     }
 
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void testPatchingWithParallelism(int parallelism) throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            baseEntries.put("file" + i + ".txt", ("Original content of file " + i).getBytes());
+            if (i % 10 != 0) {
+                modifiedEntries.put("file" + i + ".txt", ("Modified content of file " + i).getBytes());
+            }
+        }
+        modifiedEntries.put("new.txt", "New File".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
+        baseFiles.put(PatchBase.CLIENT, baseFile);
+        Map<PatchBase, File> modifiedFiles = new LinkedHashMap<>();
+        modifiedFiles.put(PatchBase.CLIENT, modifiedFile);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, DIFF_OPTIONS);
+
+        PatchOptions patchOptions = new PatchOptions();
+        patchOptions.setParallelism(parallelism);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+    }
+
+    @Test
+    void testUnchangedEntriesAreCopiedWithoutRecompression() throws IOException {
+        byte[] storedContent = "Stored, not deflated".getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(storedContent);
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(baseFile))) {
+            ZipEntry stored = new ZipEntry("stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(storedContent.length);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(storedContent);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("modified.txt"));
+            zos.write("Original".getBytes());
+            zos.closeEntry();
+        }
+
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("stored.txt", storedContent);
+        modifiedEntries.put("modified.txt", "Modified Content".getBytes());
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        generateAndApplyPatch();
+
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+        try (ZipFile output = new ZipFile(outputFile)) {
+            // A re-deflated entry would have changed its method
+            assertThat(output.getEntry("stored.txt").getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(output.getEntry("modified.txt").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        }
+    }
+
+    @Test
+    void testInPlacePatching() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            // Incompressible content, so that the entries outweigh the central directory
+            byte[] content = new byte[1024];
+            random.nextBytes(content);
+            baseEntries.put("file" + i + ".txt", content);
+            if (i != 5) {
+                modifiedEntries.put("file" + i + ".txt", i == 3 ? "Modified content".getBytes() : content);
+            }
+        }
+        modifiedEntries.put("new.txt", "New File".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
+        baseFiles.put(PatchBase.CLIENT, baseFile);
+        Map<PatchBase, File> modifiedFiles = new LinkedHashMap<>();
+        modifiedFiles.put(PatchBase.CLIENT, modifiedFile);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, DIFF_OPTIONS);
+
+        PatchOptions patchOptions = new PatchOptions();
+        patchOptions.setInPlace(true);
+
+        // First run starts from a copy of the base
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+
+        // An up-to-date output is left as-is
+        long size = outputFile.length();
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+        assertThat(outputFile.length()).isEqualTo(size);
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+
+        // An output that has drifted from the expected content is repaired
+        Map<String, byte[]> tamperedEntries = new LinkedHashMap<>(baseEntries);
+        tamperedEntries.put("file7.txt", "Tampered".getBytes());
+        createZipFile(outputFile, tamperedEntries, null);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+
+        // Changes are appended after the previous central directory, so the previous content stays readable
+        createZipFile(outputFile, tamperedEntries, null);
+        long tamperedSize = outputFile.length();
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+        assertThat(outputFile.length()).isGreaterThan(tamperedSize);
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+            raf.setLength(tamperedSize);
+        }
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(tamperedEntries);
+
+        // An output left behind by an interrupted run is rewritten entirely
+        try (FileOutputStream out = new FileOutputStream(outputFile, true)) {
+            out.write(new byte[1024]);
+        }
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, this::debug);
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void testPatchingWithinMemoryBudget(int parallelism) throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            baseEntries.put("file" + i + ".txt", ("Original content of file " + i).getBytes());
+            modifiedEntries.put("file" + i + ".txt", ("Modified content of file " + i).getBytes());
+        }
+        modifiedEntries.put("new.txt", "New File".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
+        baseFiles.put(PatchBase.CLIENT, baseFile);
+        Map<PatchBase, File> modifiedFiles = new LinkedHashMap<>();
+        modifiedFiles.put(PatchBase.CLIENT, modifiedFile);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, DIFF_OPTIONS);
+
+        // Only a few entries fit into the budget, the rest is spilled to disk
+        File spillDirectory = tempDir.resolve("spill").toFile();
+        assertThat(spillDirectory.mkdir()).isTrue();
+        PatchOptions patchOptions = new PatchOptions();
+        patchOptions.setParallelism(parallelism);
+        patchOptions.setMemoryBudget(100);
+        patchOptions.setSpillDirectory(spillDirectory);
+        List<String> messages = new ArrayList<>();
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, messages::add);
+
+        assertThat(messages).anyMatch(message -> message.startsWith("Spilled "));
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+        assertThat(spillDirectory.list()).isEmpty();
+    }
+
+    @Test
+    void testComposedBundleMatchesSequentialApplication() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("unchanged.txt", "Unchanged".getBytes());
+        baseEntries.put("modified-twice.txt", "Original".getBytes());
+        baseEntries.put("modified-then-removed.txt", "Original".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+
+        Map<String, byte[]> middleEntries = new LinkedHashMap<>();
+        middleEntries.put("unchanged.txt", "Unchanged".getBytes());
+        middleEntries.put("modified-twice.txt", "First Modification".getBytes());
+        middleEntries.put("modified-then-removed.txt", "Modified".getBytes());
+        middleEntries.put("created-then-modified.txt", "Created".getBytes());
+        File middleFile = tempDir.resolve("middle.zip").toFile();
+        createZipFile(middleFile, middleEntries, null);
+
+        Map<String, byte[]> finalEntries = new LinkedHashMap<>();
+        finalEntries.put("unchanged.txt", "Unchanged".getBytes());
+        finalEntries.put("modified-twice.txt", "Second Modification".getBytes());
+        finalEntries.put("created-then-modified.txt", "Created and Modified".getBytes());
+        createZipFile(modifiedFile, finalEntries, null);
+
+        File firstBundle = tempDir.resolve("first.bundle").toFile();
+        File secondBundle = tempDir.resolve("second.bundle").toFile();
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, middleFile), firstBundle, DIFF_OPTIONS);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, middleFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), secondBundle, DIFF_OPTIONS);
+
+        PatchBundleComposer.compose(Arrays.asList(firstBundle, secondBundle), patchBundleFile, new PatchBundleOptions());
+
+        assertThat(getPatchBundleSummary()).containsExactly(
+                "modified-twice.txt MODIFY [CLIENT]",
+                "modified-twice.txt MODIFY [CLIENT]",
+                "modified-then-removed.txt REMOVE [CLIENT]",
+                "created-then-modified.txt CREATE [CLIENT]"
+        );
+
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(finalEntries);
+    }
+
+    @Test
+    void testTargetDigestsAllowTrustingExistingOutput() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            baseEntries.put("file" + i + ".txt", ("Original content of file " + i).getBytes());
+            modifiedEntries.put("file" + i + ".txt", ("Modified content of file " + i).getBytes());
+        }
+        modifiedEntries.put("new.txt", "New File".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setStoreTargetDigests(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        try (PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
+            for (Patch patch : reader) {
+                assertThat(patch.hasTargetDigest()).isTrue();
+                assertThat(patch.getTargetSize()).isEqualTo(modifiedEntries.get(patch.getTargetPath()).length);
+            }
+        }
+
+        PatchOptions patchOptions = new PatchOptions();
+        patchOptions.setInPlace(true);
+        patchOptions.setTrustOutput(true);
+        List<String> messages = new ArrayList<>();
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, messages::add);
+        assertThat(messages).noneMatch(message -> message.startsWith("Trusting"));
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+
+        // The second run finds every patched entry already present in the output
+        messages.clear();
+        long size = outputFile.length();
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, patchOptions, messages::add);
+        assertThat(messages).filteredOn(message -> message.startsWith("Trusting")).hasSize(20);
+        assertThat(messages).noneMatch(message -> message.startsWith("Patching"));
+        assertThat(outputFile.length()).isEqualTo(size);
+        assertThat(readZipFileEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+    }
+
+    @Test
+    void testTargetDigestsWithOptimizedConstantPool() throws IOException {
+        byte[] baseClass = generateSimpleClassFile("com/example/TestClass", 42);
+        byte[] modifiedClass = generateSimpleClassFile("com/example/TestClass", 99);
+        createZipFile(baseFile, Collections.singletonMap("com/example/TestClass.class", baseClass), null);
+        createZipFile(modifiedFile, Collections.singletonMap("com/example/TestClass.class", modifiedClass), null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setOptimizeConstantPool(true);
+        diffOptions.setStoreTargetDigests(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+
+        // The patch produces the optimized class rather than the modified one, and its digest has to describe that
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        byte[] patchedClass = readZipEntries(outputFile).get("com/example/TestClass.class");
+        assertThat(patchedClass).isNotEqualTo(modifiedClass);
+        try (PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
+            Patch patch = reader.readEntry();
+            assertThat(patch.getTargetSize()).isEqualTo(patchedClass.length);
+            assertThat(patch.getTargetCrc()).isEqualTo(Patch.crc32(patchedClass));
+        }
+    }
+
+    @Test
+    void testTargetDigestMismatchFailsPatching() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("file.txt", "Original".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+
+        byte[] patchData = Patch.createModified("file.txt", "Original".getBytes(), "Modified".getBytes(),
+                EnumSet.of(PatchBase.CLIENT), DIFF_OPTIONS).getData();
+        try (FileOutputStream fos = new FileOutputStream(patchBundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos, EnumSet.of(PatchBase.CLIENT))) {
+            writer.write(new Patch(PatchOperation.MODIFY, "file.txt", EnumSet.of(PatchBase.CLIENT),
+                    Patch.checksum("Original".getBytes()), patchData, Patch.crc32("Something Else".getBytes()), 8));
+        }
+
+        assertThatThrownBy(() -> Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug))
+                .hasMessageContaining("does not match the target digest");
+    }
+
+    @Test
+    void testStreamingPatcherMatchesFilePatcher() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("unchanged.txt", "Unchanged".getBytes());
+        baseEntries.put("modified-twice.txt", "Original".getBytes());
+        baseEntries.put("removed.txt", "Original".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+
+        Map<String, byte[]> middleEntries = new LinkedHashMap<>();
+        middleEntries.put("unchanged.txt", "Unchanged".getBytes());
+        middleEntries.put("modified-twice.txt", "First Modification".getBytes());
+        middleEntries.put("created-then-modified.txt", "Created".getBytes());
+        File middleFile = tempDir.resolve("middle.zip").toFile();
+        createZipFile(middleFile, middleEntries, null);
+
+        Map<String, byte[]> finalEntries = new LinkedHashMap<>();
+        finalEntries.put("unchanged.txt", "Unchanged".getBytes());
+        finalEntries.put("modified-twice.txt", "Second Modification".getBytes());
+        finalEntries.put("created-then-modified.txt", "Created and Modified".getBytes());
+        createZipFile(modifiedFile, finalEntries, null);
+
+        File firstBundle = tempDir.resolve("first.bundle").toFile();
+        File secondBundle = tempDir.resolve("second.bundle").toFile();
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, middleFile), firstBundle, DIFF_OPTIONS);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, middleFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), secondBundle, DIFF_OPTIONS);
+
+        try (ZipInputStream base = new ZipInputStream(new FileInputStream(baseFile));
+             ZipOutputStream output = new ZipOutputStream(new FileOutputStream(outputFile))) {
+            StreamingPatcher.patch(base, PatchBase.CLIENT,
+                    Arrays.asList(new FileInputStream(firstBundle), new FileInputStream(secondBundle)), output, this::debug);
+        }
+        assertThat(readZipEntries(outputFile)).containsExactlyEntriesOf(finalEntries);
+
+        List<String> sinkPaths = new ArrayList<>();
+        try (ZipInputStream base = new ZipInputStream(new FileInputStream(baseFile))) {
+            StreamingPatcher.patch(base, PatchBase.CLIENT, Collections.singletonList(new FileInputStream(firstBundle)),
+                    (entry, content) -> sinkPaths.add(entry.getName()), this::debug);
+        }
+        assertThat(sinkPaths).containsExactly("unchanged.txt", "modified-twice.txt", "created-then-modified.txt");
+    }
+
+    @Test
+    void testRemovingMissingEntryFailsInBothPatchers() throws IOException {
+        createZipFile(baseFile, Collections.singletonMap("existing.txt", "Existing".getBytes()), null);
+        try (FileOutputStream fos = new FileOutputStream(patchBundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos, EnumSet.of(PatchBase.CLIENT))) {
+            writer.writeRemoveEntry("missing.txt", EnumSet.of(PatchBase.CLIENT));
+        }
+
+        assertThatThrownBy(() -> Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Somehow missing.txt was deleted although it does not exist.");
+
+        try (ZipInputStream base = new ZipInputStream(new FileInputStream(baseFile))) {
+            assertThatThrownBy(() -> StreamingPatcher.patch(base, PatchBase.CLIENT, Collections.singletonList(new FileInputStream(patchBundleFile)),
+                    (entry, content) -> debug(entry.getName()), this::debug))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("Somehow missing.txt was deleted although it does not exist.");
+        }
+    }
+
+    @Test
+    void testReplaceThresholdStoresRewrittenFilesAsReplace() throws IOException {
+        Random random = new Random(42);
+        byte[] rewrittenBase = new byte[4096];
+        byte[] rewrittenModified = new byte[4096];
+        random.nextBytes(rewrittenBase);
+        random.nextBytes(rewrittenModified);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            content.append("Line ").append(i).append('\n');
+        }
+
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("rewritten.bin", rewrittenBase);
+        baseEntries.put("edited.txt", content.toString().getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("rewritten.bin", rewrittenModified);
+        modifiedEntries.put("edited.txt", content.toString().replace("Line 100", "Changed").getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setReplaceThreshold(0.9);
+        diffOptions.setStoreTargetDigests(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+
+        assertThat(getPatchBundleSummary()).containsExactly(
+                "rewritten.bin REPLACE [CLIENT]",
+                "edited.txt MODIFY [CLIENT]"
+        );
+
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+
+        // The base checksum is still checked
+        baseEntries.put("rewritten.bin", rewrittenModified);
+        createZipFile(baseFile, baseEntries, null);
+        assertThatThrownBy(() -> Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug))
+                .hasMessageContaining("rewritten.bin");
+    }
+
+    @Test
+    void testReplaceStoresOptimizedConstantPool() throws IOException {
+        byte[] baseClass = generateSimpleClassFile("com/example/TestClass", 42);
+        byte[] modifiedClass = generateSimpleClassFile("com/example/TestClass", 99);
+        createZipFile(baseFile, Collections.singletonMap("com/example/TestClass.class", baseClass), null);
+        createZipFile(modifiedFile, Collections.singletonMap("com/example/TestClass.class", modifiedClass), null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setOptimizeConstantPool(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        byte[] modifyResult = readZipEntries(outputFile).get("com/example/TestClass.class");
+
+        // Any delta exceeds this threshold, and the result must not depend on which side of it an entry falls
+        diffOptions.setReplaceThreshold(0.01);
+        diffOptions.setStoreTargetDigests(true);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        assertThat(getPatchBundleSummary()).containsExactly("com/example/TestClass.class REPLACE [CLIENT]");
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile).get("com/example/TestClass.class")).isEqualTo(modifyResult);
+    }
+
+    @Test
+    void testIncrementalGenerationOnlyDiffsChangedPaths() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("changed.txt", "changed base".getBytes());
+        baseEntries.put("unchanged.txt", "unchanged base".getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("changed.txt", "changed modified".getBytes());
+        modifiedEntries.put("unchanged.txt", "unchanged modified".getBytes());
+        modifiedEntries.put("added.txt", "added".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setDigestFile(tempDir.resolve("patch.digests").toFile());
+        diffOptions.setPreviousPatchBundle(patchBundleFile);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        assertThat(getPatchBundleSummary()).containsExactly(
+                "changed.txt MODIFY [CLIENT]",
+                "unchanged.txt MODIFY [CLIENT]",
+                "added.txt CREATE [CLIENT]"
+        );
+
+        // Reused patches keep their position
+        modifiedEntries.put("changed.txt", "changed again".getBytes());
+        createZipFile(modifiedFile, modifiedEntries, null);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        assertThat(getPatchBundleSummary()).containsExactly(
+                "changed.txt MODIFY [CLIENT]",
+                "unchanged.txt MODIFY [CLIENT]",
+                "added.txt CREATE [CLIENT]"
+        );
+
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+    }
+
+    @Test
+    void testIncrementalGenerationMatchesFullGeneration() throws IOException {
+        Map<String, byte[]> clientBase = new LinkedHashMap<>();
+        clientBase.put("first.txt", "client first".getBytes());
+        clientBase.put("shared.txt", "shared base".getBytes());
+        clientBase.put("removed.txt", "removed".getBytes());
+        clientBase.put("last.txt", "client last".getBytes());
+        File clientBaseFile = tempDir.resolve("client_base.zip").toFile();
+        createZipFile(clientBaseFile, clientBase, null);
+
+        Map<String, byte[]> serverBase = new LinkedHashMap<>();
+        serverBase.put("server.txt", "server".getBytes());
+        serverBase.put("shared.txt", "shared base".getBytes());
+        serverBase.put("last.txt", "server last".getBytes());
+        File serverBaseFile = tempDir.resolve("server_base.zip").toFile();
+        createZipFile(serverBaseFile, serverBase, null);
+
+        Map<String, byte[]> clientModified = new LinkedHashMap<>();
+        clientModified.put("first.txt", "client first modified".getBytes());
+        clientModified.put("shared.txt", "shared modified".getBytes());
+        clientModified.put("last.txt", "client last modified".getBytes());
+        clientModified.put("added.txt", "added".getBytes());
+        File clientModifiedFile = tempDir.resolve("client_modified.zip").toFile();
+        createZipFile(clientModifiedFile, clientModified, null);
+
+        Map<String, byte[]> serverModified = new LinkedHashMap<>();
+        serverModified.put("server.txt", "server modified".getBytes());
+        serverModified.put("shared.txt", "shared modified".getBytes());
+        serverModified.put("last.txt", "server last modified".getBytes());
+        serverModified.put("added.txt", "added".getBytes());
+        File serverModifiedFile = tempDir.resolve("server_modified.zip").toFile();
+        createZipFile(serverModifiedFile, serverModified, null);
+
+        Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
+        baseFiles.put(PatchBase.CLIENT, clientBaseFile);
+        baseFiles.put(PatchBase.SERVER, serverBaseFile);
+        Map<PatchBase, File> modifiedFiles = new LinkedHashMap<>();
+        modifiedFiles.put(PatchBase.CLIENT, clientModifiedFile);
+        modifiedFiles.put(PatchBase.SERVER, serverModifiedFile);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setDigestFile(tempDir.resolve("patch.digests").toFile());
+        diffOptions.setPreviousPatchBundle(patchBundleFile);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, diffOptions);
+
+        // Change paths before, between and after the reused ones, in one base only
+        clientModified.put("first.txt", "client first changed".getBytes());
+        createZipFile(clientModifiedFile, clientModified, null);
+        serverModified.put("server.txt", "server changed".getBytes());
+        serverModified.put("last.txt", "server last changed".getBytes());
+        createZipFile(serverModifiedFile, serverModified, null);
+        Generator.createPatchBundle(baseFiles, modifiedFiles, patchBundleFile, diffOptions);
+
+        File fullPatchBundleFile = tempDir.resolve("full.bundle").toFile();
+        Generator.createPatchBundle(baseFiles, modifiedFiles, fullPatchBundleFile, new DiffOptions());
+        assertThat(patchBundleFile).hasBinaryContent(Files.readAllBytes(fullPatchBundleFile.toPath()));
+    }
+
+    @Test
+    void testIncrementalGenerationIgnoresOtherPreviousBundle() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("file.txt", "base".getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("file.txt", "modified".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setDigestFile(tempDir.resolve("patch.digests").toFile());
+        diffOptions.setPreviousPatchBundle(patchBundleFile);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+
+        // Replace the bundle without updating the digests, which still describe the current inputs
+        File otherModifiedFile = tempDir.resolve("other_modified.zip").toFile();
+        createZipFile(otherModifiedFile, Collections.singletonMap("file.txt", "other".getBytes()), null);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, otherModifiedFile), patchBundleFile, new DiffOptions());
+
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, diffOptions);
+        Patcher.patch(baseFile, PatchBase.CLIENT, Collections.singletonList(patchBundleFile), outputFile, this::debug);
+        assertThat(readZipEntries(outputFile)).containsExactlyInAnyOrderEntriesOf(modifiedEntries);
+    }
+
+    @Test
+    void testAnalysisReconstructsTargetSizeFromGDiff() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            content.append("Line ").append(i).append('\n');
+        }
+        baseEntries.put("pkg/large.txt", content.toString().getBytes());
+        modifiedEntries.put("pkg/large.txt", content.toString().replace("Line 100", "Changed").getBytes());
+        baseEntries.put("pkg/small.txt", "A".getBytes());
+        modifiedEntries.put("pkg/small.txt", "B".getBytes());
+        modifiedEntries.put("new.txt", "New File".getBytes());
+        createZipFile(baseFile, baseEntries, null);
+        createZipFile(modifiedFile, modifiedEntries, null);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, baseFile),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedFile), patchBundleFile, DIFF_OPTIONS);
+
+        PatchBundleAnalysis analysis = PatchBundleAnalysis.analyze(patchBundleFile, baseFile, PatchBase.CLIENT);
+
+        assertThat(analysis.getPackages()).extracting(stats -> stats.packageName).containsExactly("", "pkg");
+        for (PatchBundleAnalysis.EntryStats stats : analysis.getEntries()) {
+            if (stats.operation != PatchOperation.MODIFY) {
+                continue;
+            }
+            assertThat(stats.targetSize).isEqualTo(modifiedEntries.get(stats.targetPath).length);
+            assertThat(stats.baseSize).isEqualTo(baseEntries.get(stats.targetPath).length);
+            assertThat(stats.copiedBytes + stats.insertedBytes).isEqualTo(stats.targetSize);
+            // Changing a single byte takes more patch data than storing the whole entry
+            assertThat(stats.isCreateCheaper()).isEqualTo(stats.targetPath.equals("pkg/small.txt"));
+        }
+    }
+
     private void generateAndApplyPatch() throws IOException {
         Map<PatchBase, File> baseFiles = new LinkedHashMap<>();
         baseFiles.put(PatchBase.CLIENT, baseFile);
@@ -438,6 +1102,21 @@ public class PatchRoundtripTest {
         return entries;
     }
 
+    /**
+     * Reads all entries listed in the central directory of a ZIP file, ignoring unreferenced local entries.
+     */
+    private Map<String, byte[]> readZipFileEntries(File zipFile) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zf = new ZipFile(zipFile)) {
+            Enumeration<? extends ZipEntry> zipEntries = zf.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                entries.put(entry.getName(), Util.toByteArray(zf, entry));
+            }
+        }
+        return entries;
+    }
+
     /**
      * Reads timestamps for all entries in a ZIP file.
      */
@@ -478,6 +1157,27 @@ public class PatchRoundtripTest {
         return cw.toByteArray();
     }
 
+    /**
+     * Generates a class file with one static method per given value, each returning that value.
+     */
+    private byte[] generateClassFileWithMethods(String className, int... values) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+        for (int i = 0; i < values.length; i++) {
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "method" + i, "()I", null, null);
+            mv.visitCode();
+            mv.visitIntInsn(Opcodes.BIPUSH, values[i]);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
     private List<String> getPatchBundleSummary() throws IOException {
         List<String> result = new ArrayList<>();
         try (PatchBundleReader reader = new PatchBundleReader(patchBundleFile)) {
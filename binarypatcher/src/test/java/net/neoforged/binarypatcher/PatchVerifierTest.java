@@ -0,0 +1,59 @@
+package net.neoforged.binarypatcher;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PatchVerifierTest {
+    @ParameterizedTest
+    @EnumSource(PatchBundleFormat.class)
+    void shouldReportAllMismatches(PatchBundleFormat format, @TempDir File tempDir) throws IOException {
+        File baseFile = new File(tempDir, "base.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(baseFile))) {
+            zos.putNextEntry(new ZipEntry("matching.txt"));
+            zos.write("Matching".getBytes());
+            zos.putNextEntry(new ZipEntry("changed.txt"));
+            zos.write("Changed".getBytes());
+            zos.putNextEntry(new ZipEntry("removed.txt"));
+            zos.write("Removed".getBytes());
+        }
+
+        File bundleFile = new File(tempDir, "test.bundle");
+        PatchBundleOptions options = new PatchBundleOptions();
+        options.setFormat(format);
+        try (FileOutputStream fos = new FileOutputStream(bundleFile);
+             PatchBundleWriter writer = new PatchBundleWriter(fos, EnumSet.of(PatchBase.CLIENT), options)) {
+            writer.writeModifyEntry("matching.txt", Patch.checksum("Matching".getBytes()), new byte[0], EnumSet.of(PatchBase.CLIENT));
+            writer.writeModifyEntry("changed.txt", Patch.checksum("Original".getBytes()), new byte[0], EnumSet.of(PatchBase.CLIENT));
+            writer.writeModifyEntry("missing.txt", 1, new byte[0], EnumSet.of(PatchBase.CLIENT));
+            writer.writeRemoveEntry("removed.txt", EnumSet.of(PatchBase.CLIENT));
+            writer.writeRemoveEntry("also-missing.txt", EnumSet.of(PatchBase.CLIENT));
+            writer.writeCreateEntry("created.txt", "Created".getBytes(), EnumSet.of(PatchBase.CLIENT));
+            // Refers to the result of the earlier MODIFY, not to the base
+            writer.writeModifyEntry("matching.txt", 2, new byte[0], EnumSet.of(PatchBase.CLIENT));
+        }
+
+        List<PatchVerifier.Mismatch> mismatches = PatchVerifier.verify(baseFile, PatchBase.CLIENT,
+                Collections.singletonList(bundleFile), 4);
+
+        assertThat(mismatches).extracting(PatchVerifier.Mismatch::getTargetPath)
+                .containsExactly("changed.txt", "missing.txt", "also-missing.txt");
+        PatchVerifier.Mismatch checksumMismatch = mismatches.get(0);
+        assertThat(checksumMismatch.getReason()).isEqualTo(PatchVerifier.MismatchReason.CHECKSUM);
+        assertThat(checksumMismatch.getExpectedChecksum()).isEqualTo(Patch.checksum("Original".getBytes()));
+        assertThat(checksumMismatch.getActualChecksum()).isEqualTo(Patch.checksum("Changed".getBytes()));
+        assertThat(mismatches.get(1).getReason()).isEqualTo(PatchVerifier.MismatchReason.MISSING);
+        assertThat(mismatches.get(2).getOperation()).isEqualTo(PatchOperation.REMOVE);
+    }
+}
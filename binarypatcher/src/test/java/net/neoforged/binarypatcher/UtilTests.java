@@ -1,13 +1,18 @@
 package net.neoforged.binarypatcher;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -187,4 +192,27 @@ public class UtilTests {
         );
     }
 
+    @Test
+    void testPathFilterMatchesRegexp() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            List<String> patterns = new ArrayList<>();
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                patterns.add(randomString(random, "ab/.*?", 8));
+            }
+            String path = randomString(random, "ab/.", 10);
+
+            Predicate<String> expected = Pattern.compile(Util.pathFilterToRegexp(patterns)).asPredicate();
+            assertEquals(expected.test(path), Util.createPathFilter(patterns).test(path),
+                    String.format("Filters %s should match path '%s' like their regexp", patterns, path));
+        }
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        StringBuilder result = new StringBuilder();
+        for (int i = random.nextInt(maxLength); i > 0; i--) {
+            result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return result.toString();
+    }
 }
@@ -0,0 +1,236 @@
+package net.neoforged.cliutils.paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A compiled set of Ant-style path patterns, which matches a path if any of the patterns matches it entirely. <p>
+ * Supports:
+ * <ul>
+ *     <li>{@code ?} matches exactly one character, except {@code /}</li>
+ *     <li>{@code *} matches zero or more characters, except {@code /}</li>
+ *     <li>{@code **&#47;} matches zero or more leading path segments, including their trailing {@code /}</li>
+ *     <li>{@code **} anywhere else matches zero or more characters, including {@code /}</li>
+ * </ul>
+ * All other characters match themselves. <p>
+ * The literal prefixes of all patterns are stored in a trie, so a path is only compared against the patterns whose
+ * prefix it starts with, and patterns without wildcards never need more than a walk of the trie. The remainder of
+ * each pattern is matched by simulating all of its possible positions at once, which takes linear time in the
+ * length of the path and never backtracks. Instances are immutable and can be shared between threads.
+ */
+public final class AntPathFilter implements Predicate<String> {
+    private final TrieNode root = new TrieNode();
+
+    private AntPathFilter() {
+    }
+
+    /**
+     * @param patterns the Ant-style path patterns, at least one
+     */
+    public static AntPathFilter compile(Collection<String> patterns) {
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("Can't build an empty filter");
+        }
+
+        AntPathFilter filter = new AntPathFilter();
+        for (String pattern : patterns) {
+            int prefixEnd = 0;
+            while (prefixEnd < pattern.length() && !isWildcard(pattern.charAt(prefixEnd))) {
+                prefixEnd++;
+            }
+
+            TrieNode node = filter.root;
+            for (int i = 0; i < prefixEnd; i++) {
+                node = node.children.computeIfAbsent(pattern.charAt(i), c -> new TrieNode());
+            }
+            if (prefixEnd == pattern.length()) {
+                node.terminal = true;
+            } else {
+                node.globs.add(new Glob(pattern.substring(prefixEnd)));
+            }
+        }
+        return filter;
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '?';
+    }
+
+    @Override
+    public boolean test(String path) {
+        TrieNode node = root;
+        int position = 0;
+        while (true) {
+            for (Glob glob : node.globs) {
+                if (glob.matches(path, position)) {
+                    return true;
+                }
+            }
+            if (position == path.length()) {
+                return node.terminal;
+            }
+            node = node.children.get(path.charAt(position++));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        /**
+         * The patterns whose literal prefix ends at this node, without their prefix.
+         */
+        final List<Glob> globs = new ArrayList<>();
+        /**
+         * True if a pattern without any wildcards ends at this node.
+         */
+        boolean terminal;
+    }
+
+    /**
+     * The part of a pattern starting at its first wildcard, compiled into a nondeterministic automaton. Each state is
+     * the index of the next token to match, and the state after the last token accepts.
+     */
+    private static final class Glob {
+        /**
+         * Matches the code point in {@link #literals}.
+         */
+        private static final byte LITERAL = 0;
+        /**
+         * Matches any code point except {@code /}.
+         */
+        private static final byte ONE = 1;
+        /**
+         * Matches any number of code points except {@code /}.
+         */
+        private static final byte STAR = 2;
+        /**
+         * Matches any number of code points.
+         */
+        private static final byte DEEP = 3;
+        /**
+         * Matches nothing, or a {@link #DIRECTORIES_LOOP} that ends with a {@code /}.
+         */
+        private static final byte DIRECTORIES = 4;
+        /**
+         * Matches any number of code points, followed by a {@code /}. Only reachable through {@link #DIRECTORIES}.
+         */
+        private static final byte DIRECTORIES_LOOP = 5;
+
+        private final byte[] tokens;
+        private final int[] literals;
+
+        Glob(String pattern) {
+            List<Byte> tokens = new ArrayList<>();
+            List<Integer> literals = new ArrayList<>();
+            int i = 0;
+            while (i < pattern.length()) {
+                int c = pattern.codePointAt(i);
+                if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    if (i + 2 < pattern.length() && pattern.charAt(i + 2) == '/') {
+                        tokens.add(DIRECTORIES);
+                        tokens.add(DIRECTORIES_LOOP);
+                        literals.add(0);
+                        literals.add(0);
+                        i += 3;
+                    } else {
+                        tokens.add(DEEP);
+                        literals.add(0);
+                        i += 2;
+                    }
+                    continue;
+                }
+
+                tokens.add(c == '*' ? STAR : c == '?' ? ONE : LITERAL);
+                literals.add(c);
+                i += Character.charCount(c);
+            }
+
+            this.tokens = new byte[tokens.size()];
+            this.literals = new int[literals.size()];
+            for (int j = 0; j < this.tokens.length; j++) {
+                this.tokens[j] = tokens.get(j);
+                this.literals[j] = literals.get(j);
+            }
+        }
+
+        boolean matches(String path, int start) {
+            boolean[] current = new boolean[tokens.length + 1];
+            boolean[] next = new boolean[tokens.length + 1];
+            boolean alive = enter(current, 0);
+
+            for (int i = start; i < path.length() && alive; ) {
+                int c = path.codePointAt(i);
+                i += Character.charCount(c);
+
+                alive = false;
+                for (int state = 0; state < tokens.length; state++) {
+                    if (current[state]) {
+                        alive |= step(state, c, next);
+                    }
+                }
+
+                boolean[] swap = current;
+                current = next;
+                next = swap;
+                Arrays.fill(next, false);
+            }
+            return alive && current[tokens.length];
+        }
+
+        /**
+         * Follows the transitions of the given state for the given code point into the next states.
+         *
+         * @return true if any state was entered
+         */
+        private boolean step(int state, int c, boolean[] next) {
+            switch (tokens[state]) {
+                case LITERAL:
+                    return c == literals[state] && enter(next, state + 1);
+                case ONE:
+                    return c != '/' && enter(next, state + 1);
+                case STAR:
+                    return c != '/' && enter(next, state);
+                case DEEP:
+                    return enter(next, state);
+                case DIRECTORIES_LOOP:
+                    boolean entered = enter(next, state);
+                    if (c == '/') {
+                        entered |= enter(next, state + 1);
+                    }
+                    return entered;
+                default:
+                    // DIRECTORIES is left immediately when entering it
+                    return false;
+            }
+        }
+
+        /**
+         * Enters the given state, along with all states reachable from it without consuming anything.
+         *
+         * @return always true, to simplify tracking whether any state is still active
+         */
+        private boolean enter(boolean[] states, int state) {
+            states[state] = true;
+            if (state < tokens.length) {
+                switch (tokens[state]) {
+                    case STAR:
+                    case DEEP:
+                        enter(states, state + 1);
+                        break;
+                    case DIRECTORIES:
+                        enter(states, state + 1);
+                        enter(states, state + 2);
+                        break;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package net.neoforged.installertools;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -28,7 +29,6 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,15 +36,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.Map.Entry;
 import java.util.function.Function;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
@@ -114,14 +117,20 @@ public class ExtractInheritance extends Task {
             PROGRESS.setIndeterminate(false);
             PROGRESS.setMaxProgress(inClasses.size());
 
-            int am = 0;
-            for (Entry<String, ClassInfo> entry : inClasses.entrySet()) {
-                resolveClass(entry.getValue(), annotations);
-                if ((++am) % 10 == 0) {
-                    PROGRESS.setProgress(am);
+            // Linearizing the hierarchies loads any missing classes, after which resolving the overrides
+            // only reads shared state and can be done for all classes in parallel
+            for (ClassInfo cls : inClasses.values())
+                linearize(cls, annotations);
+
+            AtomicInteger am = new AtomicInteger();
+            inClasses.values().parallelStream().forEach(cls -> {
+                resolveClass(cls);
+                int done = am.incrementAndGet();
+                if (done % 10 == 0) {
+                    PROGRESS.setProgress(done);
                 }
-            }
-            PROGRESS.setProgress(am);
+            });
+            PROGRESS.setProgress(am.get());
 
             Files.write(output.toPath(), GSON.toJson(inClasses).getBytes(StandardCharsets.UTF_8));
 
@@ -134,72 +143,104 @@ public class ExtractInheritance extends Task {
 
     private void readJar(File input, Map<String, ClassInfo> classes, boolean annotations) throws IOException {
         try (ZipFile inJar = new ZipFile(input)) {
+            List<ZipEntry> entries = new ArrayList<>();
             Utils.forZip(inJar, entry -> {
-                if (!entry.getName().endsWith(".class") || entry.getName().startsWith("."))
-                    return;
-                ClassReader reader = new ClassReader(Utils.toByteArray(inJar.getInputStream(entry)));
-                ClassNode classNode = new ClassNode();
-                reader.accept(classNode, 0);
-                ClassInfo info = new ClassInfo(classNode, annotations);
-                classes.put(info.name, info);
+                if (entry.getName().endsWith(".class") && !entry.getName().startsWith("."))
+                    entries.add(entry);
             });
+
+            List<ClassInfo> infos = entries.parallelStream().map(entry -> {
+                try {
+                    return new ClassInfo(readClass(Utils.toByteArray(inJar.getInputStream(entry))), annotations);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read " + entry.getName() + " from " + input, e);
+                }
+            }).collect(Collectors.toList());
+
+            // Add them in the order of the jar, so that the output does not depend on the scheduling
+            infos.forEach(info -> classes.put(info.name, info));
         } catch (FileNotFoundException e) {
             throw new FileNotFoundException("Could not open input file: " + e.getMessage());
         }
     }
 
-    private void resolveClass(ClassInfo cls, boolean annotations) {
-        if (cls == null || cls.resolved)
-            return;
-
-        if (!cls.name.equals("java/lang/Object") && cls.superName != null)
-            resolveClass(getClassInfo(cls.superName, annotations), annotations);
+    private static ClassNode readClass(byte[] data) {
+        ClassReader reader = new ClassReader(data);
+        ClassNode classNode = new ClassNode();
+        reader.accept(classNode, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG);
+
+        // Code is only needed to detect bouncers, so only read it for the methods that can be one
+        Map<String, Integer> needCode = new HashMap<>();
+        for (int i = 0; i < classNode.methods.size(); i++) {
+            MethodNode mn = classNode.methods.get(i);
+            if ((mn.access & (ACC_SYNTHETIC | ACC_BRIDGE)) != 0 && (mn.access & ACC_STATIC) == 0)
+                needCode.put(mn.name + mn.desc, i);
+        }
 
-        if (cls.interfaces != null)
-            for (String intf : cls.interfaces)
-                resolveClass(getClassInfo(intf, annotations), annotations);
-
-        if (cls.methods != null) {
-            for (MethodInfo mtd : cls.methods.values()) {
-                if ("<init>".equals(mtd.getName()) || "<cinit>".equals(mtd.getName()))
-                    continue;
-                if ((mtd.access & (ACC_PRIVATE | ACC_STATIC)) != 0)
-                    continue;
-
-                MethodInfo override = null;
-                Queue<ClassInfo> que = new ArrayDeque<>();
-                Set<String> processed = new HashSet<>();
-
-                if (cls.superName != null)
-                    addQueue(cls.superName, processed, que, annotations);
-                if (cls.interfaces != null)
-                    cls.interfaces.forEach(intf -> addQueue(intf, processed, que, annotations));
-
-                while (!que.isEmpty()) {
-                    ClassInfo c = que.poll();
-                    if (c.superName != null)
-                        addQueue(c.superName, processed, que, annotations);
-                    if (c.interfaces != null)
-                        c.interfaces.forEach(intf -> addQueue(intf, processed, que, annotations));
-
-                    MethodInfo m = c.getMethod(mtd.getName(), mtd.getDesc());
-
-                    int bad_flags = ACC_PRIVATE | ACC_FINAL | ACC_STATIC;
-                    if (m == null || (m.access & bad_flags) != 0)
-                        continue;
-
-                    override = m;
+        if (!needCode.isEmpty()) {
+            reader.accept(new ClassVisitor(ASM9) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    Integer index = needCode.get(name + descriptor);
+                    if (index == null)
+                        return null;
+                    MethodNode mn = new MethodNode(ASM9, access, name, descriptor, signature, exceptions);
+                    classNode.methods.set(index, mn);
+                    return mn;
                 }
+            }, 0);
+        }
 
-                if (override != null)
-                    mtd.override = override.getParent().name;
+        return classNode;
+    }
+
+    private void resolveClass(ClassInfo cls) {
+        if (cls.methods == null)
+            return;
+
+        for (Entry<String, MethodInfo> entry : cls.methods.entrySet()) {
+            MethodInfo mtd = entry.getValue();
+            if ("<init>".equals(mtd.getName()) || "<cinit>".equals(mtd.getName()))
+                continue;
+            if ((mtd.access & (ACC_PRIVATE | ACC_STATIC)) != 0)
+                continue;
+
+            // The last supertype in breadth-first order that declares an inheritable method wins
+            for (int i = cls.supertypes.size() - 1; i >= 0; i--) {
+                ClassInfo c = cls.supertypes.get(i);
+                if (c.inheritable.contains(entry.getKey())) {
+                    mtd.override = c.name;
+                    break;
+                }
             }
         }
+    }
+
+    private void linearize(ClassInfo cls, boolean annotations) {
+        if (cls.supertypes != null)
+            return;
+
+        // Breadth-first, the list itself serves as the queue
+        List<ClassInfo> supertypes = new ArrayList<>();
+        Set<String> processed = new HashSet<>();
+
+        if (cls.superName != null)
+            addQueue(cls.superName, processed, supertypes, annotations);
+        if (cls.interfaces != null)
+            cls.interfaces.forEach(intf -> addQueue(intf, processed, supertypes, annotations));
+
+        for (int i = 0; i < supertypes.size(); i++) {
+            ClassInfo c = supertypes.get(i);
+            if (c.superName != null)
+                addQueue(c.superName, processed, supertypes, annotations);
+            if (c.interfaces != null)
+                c.interfaces.forEach(intf -> addQueue(intf, processed, supertypes, annotations));
+        }
 
-        cls.resolved = true;
+        cls.supertypes = supertypes;
     }
 
-    private void addQueue(String cls, Set<String> visited, Queue<ClassInfo> que, boolean annotations) {
+    private void addQueue(String cls, Set<String> visited, List<ClassInfo> que, boolean annotations) {
         if (!visited.contains(cls)) {
             ClassInfo ci = getClassInfo(cls, annotations);
             if (ci != null)
@@ -238,13 +279,21 @@ public class ExtractInheritance extends Task {
         @SuppressWarnings("unused")
         public final List<AnnotationInfo> annotations;
 
-        private boolean resolved = false;
+        // Keys of the methods that subclasses can override
+        private final Set<String> inheritable = new HashSet<>();
+        // All supertypes in breadth-first order, set by linearize
+        private List<ClassInfo> supertypes;
 
         private Map<String, MethodInfo> makeMap(List<MethodInfo> lst) {
             if (lst.isEmpty())
                 return null;
             Map<String, MethodInfo> ret = new TreeMap<>();
-            lst.forEach(info -> ret.put(info.getName() + " " + info.getDesc(), info));
+            lst.forEach(info -> {
+                String key = info.getName() + " " + info.getDesc();
+                ret.put(key, info);
+                if ((info.access & (ACC_PRIVATE | ACC_FINAL | ACC_STATIC)) == 0)
+                    inheritable.add(key);
+            });
             return ret;
         }
 
@@ -300,10 +349,6 @@ public class ExtractInheritance extends Task {
             else
                 this.annotations = null;
         }
-
-        public MethodInfo getMethod(String name, String desc) {
-            return methods == null ? null : methods.get(name + " " + desc);
-        }
     }
 
     private static class FieldInfo {
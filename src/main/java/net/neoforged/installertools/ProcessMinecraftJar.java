@@ -20,7 +20,6 @@ package net.neoforged.installertools;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
-import com.nothome.delta.GDiffPatcher;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -352,14 +351,12 @@ public class ProcessMinecraftJar extends Task {
                     + " but the base is of type " + baseType);
         }
 
-        GDiffPatcher patcher = new GDiffPatcher();
-
         for (Patch patch : bundle.patches) {
             if (!patch.getBaseTypes().contains(baseType)) {
                 continue;
             }
             try {
-                applyPatch(entries, patch, patcher);
+                applyPatch(entries, patch);
             } catch (IOException e) {
                 throw new UncheckedIOException("Failed to apply patch file " + patch.getTargetPath(), e);
             }
@@ -369,7 +366,7 @@ public class ProcessMinecraftJar extends Task {
         return entries;
     }
 
-    private static void applyPatch(Map<String, InputFileEntry> entries, Patch patch, GDiffPatcher patcher) throws IOException {
+    private static void applyPatch(Map<String, InputFileEntry> entries, Patch patch) throws IOException {
         String patchedPath = patch.getTargetPath();
 
         InputFileEntry entry = entries.get(patchedPath);
@@ -399,13 +396,19 @@ public class ProcessMinecraftJar extends Task {
                 throw new IOException("Patch expected " + patch.getTargetPath() + " to have the checksum " + Long.toHexString(patch.getBaseChecksumUnsigned()) + " but it was " + Long.toHexString(checksum));
             }
 
-            entry = new InputFileEntry(entry.name, entry.getLastModified(), patcher.patch(entry.content, patch.getData()));
+            byte[] patchedContent;
+            if (patch.getOperation() == PatchOperation.REPLACE) {
+                patchedContent = patch.getData(); // The entry holds the whole file instead of a delta
+            } else {
+                patchedContent = Patch.applyDelta(entry.content, patch.getData());
+            }
+            entry = new InputFileEntry(entry.name, entry.getLastModified(), patchedContent);
         }
         entries.put(entry.name, entry);
     }
 
     private LoadedPatchBundle loadPatchList(File patchBundleFile) throws IOException {
-        try (PatchBundleReader bundleReader = new PatchBundleReader(patchBundleFile)) {
+        try (PatchBundleReader bundleReader = new PatchBundleReader(patchBundleFile, executor)) {
             List<Patch> patches = new ArrayList<>(bundleReader.getEntryCount());
             for (Patch patch : bundleReader) {
                 patches.add(patch);
@@ -18,6 +18,12 @@
  */
 package net.neoforged.installertools;
 
+import net.neoforged.binarypatcher.DiffOptions;
+import net.neoforged.binarypatcher.Generator;
+import net.neoforged.binarypatcher.Patch;
+import net.neoforged.binarypatcher.PatchBase;
+import net.neoforged.binarypatcher.PatchBundleReader;
+import net.neoforged.binarypatcher.PatchOperation;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.objectweb.asm.ClassReader;
@@ -30,10 +36,12 @@ import org.objectweb.asm.tree.ClassNode;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.jar.Attributes;
@@ -126,6 +134,51 @@ class ProcessMinecraftJarTest {
         }
     }
 
+    @Test
+    void testApplyPatchesWithReplaceEntry() throws IOException {
+        Path clientJar = tempDir.resolve("client.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(clientJar)))) {
+            writeClass(out, "net/minecraft/client/main/Main.class");
+            out.putNextEntry(new ZipEntry("assets/lang/en_us.json"));
+            out.write("{\"key\": \"original\"}".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+
+        byte[] patchedJson = "{\"key\": \"patched\"}".getBytes(StandardCharsets.UTF_8);
+        Path modifiedJar = tempDir.resolve("client_modified.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(modifiedJar)))) {
+            writeClass(out, "net/minecraft/client/main/Main.class");
+            out.putNextEntry(new ZipEntry("assets/lang/en_us.json"));
+            out.write(patchedJson);
+            out.closeEntry();
+        }
+
+        // A tiny threshold stores every modified file as a REPLACE entry
+        Path patchBundle = tempDir.resolve("patches.lzma");
+        DiffOptions diffOptions = new DiffOptions();
+        diffOptions.setReplaceThreshold(0.01);
+        Generator.createPatchBundle(Collections.singletonMap(PatchBase.CLIENT, clientJar.toFile()),
+                Collections.singletonMap(PatchBase.CLIENT, modifiedJar.toFile()), patchBundle.toFile(), diffOptions);
+        try (PatchBundleReader reader = new PatchBundleReader(patchBundle.toFile())) {
+            assertThat(reader).extracting(Patch::getOperation).containsExactly(PatchOperation.REPLACE);
+        }
+
+        Path outputJar = tempDir.resolve("output.jar");
+        new ProcessMinecraftJar().process(new String[]{
+                "--input", clientJar.toString(),
+                "--apply-patches", patchBundle.toString(),
+                "--output", outputJar.toString()
+        });
+
+        try (ZipFile zf = new ZipFile(outputJar.toFile())) {
+            ZipEntry entry = zf.getEntry("assets/lang/en_us.json");
+            assertThat(entry).isNotNull();
+            try (InputStream in = zf.getInputStream(entry)) {
+                assertThat(in).hasBinaryContent(patchedJson);
+            }
+        }
+    }
+
     private static List<String> getDistTable(Manifest manifest) {
         List<String> result = new ArrayList<>();
 